@@ -0,0 +1,64 @@
+package com.terabyte.calculator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import com.terabyte.calculator.Calculator;
+import com.terabyte.calculator.ExpressionCache;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// End to end, from input text to formatted result or error message, or
+// to a Result for tryEvaluate.
+// evaluate repeats the same inputs, so after warmup every one is found in
+// the expression cache. evaluateUncached scans, parses and optimizes each
+// input every time: its cache holds a single entry, and it alternates
+// between two spellings of the batch, one with a trailing space, so that
+// no lookup finds the entry left by the one before.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CalculatorBenchmark {
+  @Param
+  public Workload workload;
+
+  private Calculator cached;
+  private Calculator uncached;
+  private String[][] spellings;
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    cached = new Calculator();
+    uncached = new Calculator(new ExpressionCache(1));
+    for (String definition : workload.definitions) {
+      cached.evaluate(definition);
+      uncached.evaluate(definition);
+    }
+    spellings = new String[2][workload.inputs.length];
+    for (int i = 0; i < workload.inputs.length; i++) {
+      spellings[0][i] = workload.inputs[i];
+      spellings[1][i] = workload.inputs[i] + " ";
+    }
+  }
+
+  @Benchmark
+  public void evaluate(Blackhole hole) {
+    for (String input : workload.inputs) {
+      hole.consume(cached.evaluate(input));
+    }
+  }
+
+  @Benchmark
+  public void tryEvaluate(Blackhole hole) {
+    for (String input : workload.inputs) {
+      hole.consume(cached.tryEvaluate(input));
+    }
+  }
+
+  @Benchmark
+  public void evaluateUncached(Blackhole hole) {
+    next ^= 1;
+    for (String input : spellings[next]) {
+      hole.consume(uncached.evaluate(input));
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package com.terabyte.calculator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import com.terabyte.calculator.Lexer;
+import com.terabyte.calculator.Scanner.LexicalError;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LexerBenchmark {
+  @Param
+  public Workload workload;
+
+  private final Lexer lexer = new Lexer();
+
+  @Benchmark
+  public void next(Blackhole hole) {
+    for (String input : workload.inputs) {
+      try {
+        lexer.reset(input);
+        while (lexer.next()) {
+          hole.consume(lexer.token());
+        }
+      } catch (LexicalError err) {
+        hole.consume(err);
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.terabyte.calculator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import com.terabyte.calculator.Parser;
+import com.terabyte.calculator.Parser.ParseError;
+import com.terabyte.calculator.Scanner.LexicalError;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParserBenchmark {
+  @Param
+  public Workload workload;
+
+  private final Parser parser = new Parser();
+
+  @Benchmark
+  public void parse(Blackhole hole) {
+    for (String input : workload.inputs) {
+      try {
+        hole.consume(parser.parse(input));
+      } catch (LexicalError | ParseError err) {
+        hole.consume(err);
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.terabyte.calculator.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import com.terabyte.calculator.Expression;
+import com.terabyte.calculator.Parser;
+import com.terabyte.calculator.Parser.ParseError;
+import com.terabyte.calculator.Scanner.LexicalError;
+import com.terabyte.calculator.TreeInterpreter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Evaluates parsed trees, leaving scanning and parsing out. Inputs that do
+// not parse are dropped from the batch.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TreeInterpreterBenchmark {
+  @Param
+  public Workload workload;
+
+  private TreeInterpreter interp;
+  private Expression[] trees;
+
+  @Setup
+  public void setUp() {
+    Parser parser = new Parser();
+    interp = new TreeInterpreter();
+    for (String definition : workload.definitions) {
+      interp.evaluate(parser.parse(definition));
+    }
+    ArrayList<Expression> parsed = new ArrayList<>();
+    for (String input : workload.inputs) {
+      try {
+        parsed.add(parser.parse(input));
+      } catch (LexicalError | ParseError err) {
+        continue;
+      }
+    }
+    trees = parsed.toArray(new Expression[0]);
+  }
+
+  @Benchmark
+  public void evaluate(Blackhole hole) {
+    for (Expression tree : trees) {
+      try {
+        hole.consume(interp.evaluate(tree));
+      } catch (RuntimeException err) {
+        hole.consume(err);
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.terabyte.calculator.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+// The inputs each benchmark runs over. Every workload is a fixed batch of
+// inputs, evaluated in turn by one benchmark invocation, together with the
+// definitions they need. Generated inputs use a fixed seed so that runs
+// can be compared.
+public enum Workload {
+  // Typical interactive input.
+  SHORT(new String[0], new String[] {
+    "1 + 2",
+    "2 * (3 + 4) - 5 / 2",
+    "x = 42",
+    "x * 1.5 + 3^2",
+    "-(7 mod 3) + 15%",
+  }),
+  // One expression of a few thousand terms.
+  LONG(new String[0], new String[] {
+    generate(new Random(42), 2000),
+  }),
+  // Calls through a chain of user functions, each calling the previous
+  // one. The language has no conditionals, so real recursion never ends;
+  // a chain is the deepest call stack that still returns.
+  DEEP_CALLS(chain(200), new String[] {
+    "f200(1)",
+    "f200(2) - f100(3)",
+  }),
+  // Mostly calls to built-in functions.
+  TRIG(new String[0], new String[] {
+    "sin(pi / 6) ^ 2 + cos(pi / 6) ^ 2",
+    "atan(tan(0.5)) + asin(sin(0.25)) + acos(cos(0.75))",
+    "sinh(1) / cosh(1) - tanh(1)",
+    "sqrt(abs(sin(2) * cos(3))) + log(10, 1000) + root(27, 3)",
+  }),
+  // Every input fails, in each of the ways input can fail.
+  ERRORS(new String[0], new String[] {
+    "2 $ 3",
+    "(1 + 2",
+    "1 + * 2",
+    "undefined_name * 2",
+    "1 / (2 - 2)",
+    "sqrt(1, 2)",
+    "pi(2)",
+  }),
+  // Typed input where most lines are mistakes, in proportion to how often
+  // each kind of mistake is made.
+  MOSTLY_ERRORS(new String[] {"rate = 0.2"}, new String[] {
+    "price * (1 + rate",
+    "1200 * rate",
+    "total + 1",
+    "sin(30°)",
+    "3 +* 4",
+    "sqrt(2, 16)",
+    "(4 + 5) * 2)",
+    "100 / (rate - 0.2)",
+    "2 ^ 10",
+    "ln(",
+  });
+
+  // Evaluated once, in order, before the inputs.
+  public final String[] definitions;
+  public final String[] inputs;
+
+  Workload(String[] definitions, String[] inputs) {
+    this.definitions = definitions;
+    this.inputs = inputs;
+  }
+
+  // Enum constants are built before the static fields of the enum, so
+  // their helpers cannot use any.
+  private static String generate(Random random, int terms) {
+    String[] operators = {" + ", " - ", " * ", " / "};
+    StringBuilder out = new StringBuilder();
+    int open = 0;
+    for (int i = 0; i < terms; i++) {
+      if (i > 0) {
+        out.append(operators[random.nextInt(operators.length)]);
+      }
+      if (random.nextInt(8) == 0) {
+        out.append('(');
+        open++;
+      }
+      out.append(1 + random.nextInt(999));
+      if (random.nextInt(4) == 0) {
+        out.append('.').append(random.nextInt(100));
+      }
+      if (open > 0 && random.nextInt(8) == 0) {
+        out.append(')');
+        open--;
+      }
+    }
+    for (; open > 0; open--) {
+      out.append(')');
+    }
+    return out.toString();
+  }
+
+  private static String[] chain(int depth) {
+    ArrayList<String> definitions = new ArrayList<>();
+    definitions.add("f0(x) = x + 1");
+    for (int i = 1; i <= depth; i++) {
+      definitions.add(String.format("f%d(x) = f%d(x) * 1.0001 + 1", i, i - 1));
+    }
+    return definitions.toArray(new String[0]);
+  }
+}
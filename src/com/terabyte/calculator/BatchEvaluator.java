@@ -0,0 +1,296 @@
+package com.terabyte.calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import com.terabyte.calculator.Expression.*;
+import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
+import com.terabyte.calculator.ForeignFunction.Primitive1;
+import com.terabyte.calculator.ForeignFunction.Primitive2;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+// Evaluates one expression over many rows of bindings at once. Rows are
+// processed in blocks; each node is visited once per block and computes
+// its whole block in a loop over primitive arrays. Names bound to a column
+// take one value per row, every other name is read from the globals.
+//
+// Every visit returns a block buffer taken from a stack-like pool. The
+// caller owns it and buffers are always released in reverse order.
+public class BatchEvaluator implements ExpressionVisitor<double[]> {
+  public static final int BLOCK_SIZE = 1024;
+
+  private final TreeInterpreter state;
+  private final Environment globals;
+  private final HashMap<Integer, double[]> columns = new HashMap<>();
+  private double[][] buffers = new double[16][];
+  private int used = 0;
+  private double[][] frame = new double[0][];
+  private int offset;
+  private int length;
+
+  public BatchEvaluator(TreeInterpreter state) {
+    this.state = state;
+    this.globals = state.getEnvironment();
+  }
+
+  static int rows(Map<String, double[]> inputs) {
+    int rows = -1;
+    for (double[] column : inputs.values()) {
+      if (rows >= 0 && column.length != rows) {
+        throw new ValueError("Columns must have the same length.");
+      }
+      rows = column.length;
+    }
+    if (rows < 0) {
+      throw new ValueError("At least one column is required.");
+    }
+    return rows;
+  }
+
+  public double[] evaluate(Expression expr, Map<String, double[]> inputs) {
+    int rows = rows(inputs);
+    double[] out = new double[rows];
+    evaluate(expr, inputs, 0, rows, out, 0);
+    return out;
+  }
+
+  // Evaluates rows [from, to) of the input columns into out, starting at
+  // index at.
+  public void evaluate(Expression expr, Map<String, double[]> inputs, int from, int to, double[] out, int at) {
+    if (expr == null || expr instanceof Assignment || expr instanceof Function) {
+      throw new ValueError("Only expressions can be evaluated in batches.");
+    }
+    columns.clear();
+    for (Map.Entry<String, double[]> input : inputs.entrySet()) {
+      // Binding a column defines its name.
+      columns.put(Symbols.intern(input.getKey()), input.getValue());
+    }
+    try {
+      for (offset = from; offset < to; offset += BLOCK_SIZE) {
+        length = Math.min(BLOCK_SIZE, to - offset);
+        used = 0;
+        frame = new double[0][];
+        double[] block = expr.accept(this);
+        System.arraycopy(block, 0, out, at + offset - from, length);
+      }
+    } finally {
+      columns.clear();
+      used = 0;
+    }
+  }
+
+  private double[] acquire() {
+    if (used == buffers.length) {
+      buffers = Arrays.copyOf(buffers, used * 2);
+    }
+    if (buffers[used] == null) {
+      buffers[used] = new double[BLOCK_SIZE];
+    }
+    return buffers[used++];
+  }
+  private void release(int count) {
+    used -= count;
+  }
+
+  @Override
+  public double[] visit(Literal expr) {
+    double[] out = acquire();
+    Arrays.fill(out, 0, length, expr.value);
+    return out;
+  }
+
+  @Override
+  public double[] visit(Unary expr) {
+    double[] x = expr.operand.accept(this);
+    switch (expr.operator.type) {
+      case MINUS:
+        for (int i = 0; i < length; i++) {
+          x[i] = -x[i];
+        }
+        return x;
+      case MODULO:
+        for (int i = 0; i < length; i++) {
+          x[i] = x[i] / 100.0;
+        }
+        return x;
+      default: throw new AssertionError();
+    }
+  }
+
+  @Override
+  public double[] visit(Binary expr) {
+    double[] x = expr.left.accept(this);
+    double[] y = expr.right.accept(this);
+    switch (expr.operator.type) {
+      case PLUS:
+        for (int i = 0; i < length; i++) {
+          x[i] = x[i] + y[i];
+        }
+        break;
+      case MINUS:
+        for (int i = 0; i < length; i++) {
+          x[i] = x[i] - y[i];
+        }
+        break;
+      case ASTERISK:
+        for (int i = 0; i < length; i++) {
+          x[i] = x[i] * y[i];
+        }
+        break;
+      case SLASH:
+        checkDivisor(y);
+        for (int i = 0; i < length; i++) {
+          x[i] = x[i] / y[i];
+        }
+        break;
+      case MOD:
+        checkDivisor(y);
+        for (int i = 0; i < length; i++) {
+          x[i] = x[i] % y[i];
+        }
+        break;
+      case CARET:
+        for (int i = 0; i < length; i++) {
+          x[i] = Math.pow(x[i], y[i]);
+        }
+        break;
+      default: throw new AssertionError();
+    }
+    release(1);
+    return x;
+  }
+  private void checkDivisor(double[] y) {
+    for (int i = 0; i < length; i++) {
+      if (y[i] == 0) {
+        throw new ValueError("Division by zero is undefined.");
+      }
+    }
+  }
+
+  @Override
+  public double[] visit(Group expr) {
+    return expr.expression.accept(this);
+  }
+
+  @Override
+  public double[] visit(Variable expr) {
+    double[] out = acquire();
+    if (expr.slot >= 0) {
+      System.arraycopy(frame[expr.slot], 0, out, 0, length);
+      return out;
+    }
+    double[] column = columns.get(expr.symbol());
+    if (column != null) {
+      System.arraycopy(column, offset, out, 0, length);
+    } else {
+      Arrays.fill(out, 0, length, globals.getDouble(expr));
+    }
+    return out;
+  }
+
+  @Override
+  public double[] visit(Assignment expr) {
+    throw new ValueError("Only expressions can be evaluated in batches.");
+  }
+
+  @Override
+  public double[] visit(Function expr) {
+    throw new ValueError("Only expressions can be evaluated in batches.");
+  }
+
+  @Override
+  public double[] visit(Call expr) {
+    Object func = globals.getFunction(expr.name.lexeme);
+    int arity = expr.args.size();
+    if (func instanceof Function) {
+      Function fn = (Function) func;
+      if (fn.params.size() != arity) {
+        throw new ValueError("Invalid arity for function call.");
+      }
+      if (arity == 0) {
+        return callFunction(fn, new double[0][]);
+      }
+      double[][] args = new double[arity][];
+      for (int i = 0; i < arity; i++) {
+        args[i] = expr.args.get(i).accept(this);
+      }
+      // The result is moved into the first argument's buffer so that the
+      // remaining ones can be released in order.
+      double[] result = callFunction(fn, args);
+      System.arraycopy(result, 0, args[0], 0, length);
+      release(arity);
+      return args[0];
+    } else if (func instanceof ForeignFunction) {
+      ForeignFunction fn = (ForeignFunction) func;
+      double[][] args = new double[arity][];
+      for (int i = 0; i < arity; i++) {
+        args[i] = expr.args.get(i).accept(this);
+      }
+      fn.arityCheck(arity);
+      double[] out = arity == 0 ? acquire() : args[0];
+      if (fn instanceof Primitive1) {
+        Primitive1 primitive = (Primitive1) fn;
+        for (int row = 0; row < length; row++) {
+          out[row] = primitive.call(out[row]);
+        }
+        return out;
+      } else if (fn instanceof Primitive2) {
+        Primitive2 primitive = (Primitive2) fn;
+        double[] y = args[1];
+        for (int row = 0; row < length; row++) {
+          out[row] = primitive.call(out[row], y[row]);
+        }
+        release(1);
+        return out;
+      }
+      ArrayList<Double> values = new ArrayList<>(arity);
+      for (int row = 0; row < length; row++) {
+        values.clear();
+        for (int i = 0; i < arity; i++) {
+          values.add(args[i][row]);
+        }
+        out[row] = callForeign(fn, values);
+      }
+      if (arity > 1) {
+        release(arity - 1);
+      }
+      return out;
+    }
+    throw new ValueError(String.format("Cannot call '%s'", expr.name.lexeme));
+  }
+  private double[] callFunction(Function fn, double[][] args) {
+    double[][] caller = frame;
+    frame = args;
+    try {
+      return fn.expression.accept(this);
+    } finally {
+      frame = caller;
+    }
+  }
+  private double callForeign(ForeignFunction fn, ArrayList<Double> values) {
+    Double n;
+    try {
+      n = fn.execute(state, values);
+    } catch (Throwable err) {
+      throw new BadFFI_Call("Something went wrong.");
+    }
+    if (n == null) {
+      throw new ValueError("Value cannot be null.");
+    }
+    return n;
+  }
+
+  @Override
+  public double[] visit(Let expr) {
+    double[] value = expr.value.accept(this);
+    if (expr.slot >= frame.length) {
+      frame = Arrays.copyOf(frame, expr.slot + 1);
+    }
+    frame[expr.slot] = value;
+    double[] body = expr.body.accept(this);
+    System.arraycopy(body, 0, value, 0, length);
+    release(1);
+    return value;
+  }
+}
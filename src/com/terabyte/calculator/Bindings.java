@@ -0,0 +1,32 @@
+package com.terabyte.calculator;
+
+import java.util.Objects;
+
+// Variable values for evaluating a CompiledExpression. A Bindings is
+// cheap to create and is not thread-safe: each thread uses its own, and
+// may reuse it across calls.
+public class Bindings {
+  final CompiledExpression owner;
+  // The values, then a flag for each that is still unbound.
+  final double[] values;
+
+  Bindings(CompiledExpression owner, double[] values) {
+    this.owner = owner;
+    this.values = values;
+  }
+
+  // Names the expression does not read are ignored.
+  public Bindings set(String name, double value) {
+    int index = owner.indexOf(name);
+    if (index >= 0) {
+      set(index, value);
+    }
+    return this;
+  }
+  public Bindings set(int index, double value) {
+    int count = values.length >> 1;
+    values[Objects.checkIndex(index, count)] = value;
+    values[count + index] = 0;
+    return this;
+  }
+}
@@ -0,0 +1,75 @@
+package com.terabyte.calculator;
+
+// A compiled program for the VirtualMachine. Instructions are an opcode
+// followed by its int operands; the main expression starts at 0 and the
+// bodies of the user functions it calls follow it.
+public class Bytecode {
+  public static final int CONST = 0;        // index: push constants[index]
+  public static final int LOAD = 1;         // slot: push frame[slot]
+  public static final int STORE = 2;        // slot: pop into frame[slot]
+  public static final int GLOBAL = 3;       // symbol: push a global
+  public static final int SET_GLOBAL = 4;   // symbol: assign the top to a global
+  public static final int NEGATE = 5;
+  public static final int PERCENT = 6;
+  public static final int ADD = 7;
+  public static final int SUBTRACT = 8;
+  public static final int MULTIPLY = 9;
+  public static final int DIVIDE = 10;
+  public static final int REMAINDER = 11;
+  public static final int POWER = 12;
+  public static final int CALL = 13;        // target, arity, frame size, stack needed
+  public static final int FOREIGN = 14;     // index, arity: call foreign[index]
+  public static final int RETURN = 15;
+  public static final int FAIL = 16;        // index: throw failures[index]
+
+  private static final String[] NAMES = {
+    "const", "load", "store", "global", "set_global", "negate", "percent", "add",
+    "subtract", "multiply", "divide", "remainder", "power", "call", "foreign", "return", "fail",
+  };
+  private static final int[] OPERANDS = { 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 4, 2, 0, 1 };
+
+  static int operands(int op) {
+    return OPERANDS[op];
+  }
+
+  public final int[] code;
+  public final double[] constants;
+  public final ForeignFunction[] foreign;
+  // Calls that cannot succeed compile to FAIL, which throws the error the
+  // interpreters would raise on reaching them.
+  public final RuntimeException[] failures;
+  // Frame size and operand stack needed by the main expression.
+  public final int frameSize;
+  public final int stackSize;
+
+  Bytecode(int[] code, double[] constants, ForeignFunction[] foreign, RuntimeException[] failures,
+      int frameSize, int stackSize) {
+    this.code = code;
+    this.constants = constants;
+    this.foreign = foreign;
+    this.failures = failures;
+    this.frameSize = frameSize;
+    this.stackSize = stackSize;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+      int op = code[pc];
+      builder.append(String.format("%4d  %s", pc, NAMES[op]));
+      for (int i = 1; i <= OPERANDS[op]; i++) {
+        builder.append(' ').append(code[pc + i]);
+      }
+      if (op == CONST) {
+        builder.append("  ; ").append(constants[code[pc + 1]]);
+      } else if (op == GLOBAL || op == SET_GLOBAL) {
+        builder.append("  ; ").append(Symbols.name(code[pc + 1]));
+      } else if (op == FAIL) {
+        builder.append("  ; ").append(Calculator.describe(failures[code[pc + 1]]));
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,248 @@
+package com.terabyte.calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.Expression.*;
+import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+import static com.terabyte.calculator.Bytecode.*;
+
+// Compiles an expression, and every user function it can reach, to
+// Bytecode. Functions are bound when compiled, against the globals of the
+// interpreter at that time; a call that cannot succeed against them fails
+// where the interpreters would, after any operands evaluated before it. Each scope keeps track of how deep its operand
+// stack gets so that the VM only has to check for room once per call.
+public class BytecodeCompiler implements ExpressionVisitor<Void> {
+  private final TreeInterpreter state;
+  private int[] code = new int[64];
+  private int size = 0;
+  private final ArrayList<Double> constants = new ArrayList<>();
+  private final HashMap<Long, Integer> constantIndex = new HashMap<>();
+  private final ArrayList<ForeignFunction> foreign = new ArrayList<>();
+  private final IdentityHashMap<ForeignFunction, Integer> foreignIndex = new IdentityHashMap<>();
+  private final ArrayList<RuntimeException> failures = new ArrayList<>();
+
+  // Called functions get an index; their CALL operands are patched once
+  // all of them are compiled.
+  private final ArrayList<Function> functions = new ArrayList<>();
+  private final IdentityHashMap<Function, Integer> functionIndex = new IdentityHashMap<>();
+  private final ArrayList<int[]> calls = new ArrayList<>();
+
+  private int frameSize;
+  private int depth;
+  private int maxDepth;
+
+  public BytecodeCompiler(TreeInterpreter state) {
+    this.state = state;
+  }
+
+  public Bytecode compile(Expression expr) {
+    if (expr == null || expr instanceof Function) {
+      throw new ValueError("Nothing to compile.");
+    }
+    size = 0;
+    constants.clear();
+    constantIndex.clear();
+    foreign.clear();
+    foreignIndex.clear();
+    failures.clear();
+    functions.clear();
+    functionIndex.clear();
+    calls.clear();
+
+    // Compiling a body can add more functions to the end of the list.
+    int[] main = scope(expr, 0);
+    ArrayList<int[]> bodies = new ArrayList<>();
+    for (int i = 0; i < functions.size(); i++) {
+      Function fn = functions.get(i);
+      int entry = size;
+      int[] sizes = scope(fn.expression, fn.params.size());
+      bodies.add(new int[] { entry, sizes[0], sizes[1] });
+    }
+    for (int[] call : calls) {
+      int[] body = bodies.get(call[1]);
+      code[call[0] + 1] = body[0];
+      code[call[0] + 3] = body[1];
+      code[call[0] + 4] = body[1] + body[2];
+    }
+
+    double[] pool = new double[constants.size()];
+    for (int i = 0; i < pool.length; i++) {
+      pool[i] = constants.get(i);
+    }
+    return new Bytecode(Arrays.copyOf(code, size), pool,
+        foreign.toArray(new ForeignFunction[0]), failures.toArray(new RuntimeException[0]), main[0], main[1]);
+  }
+
+  // Compiles a body followed by RETURN; returns its frame and stack sizes.
+  private int[] scope(Expression body, int arity) {
+    frameSize = arity;
+    depth = 0;
+    maxDepth = 0;
+    body.accept(this);
+    emit(RETURN);
+    return new int[] { frameSize, maxDepth };
+  }
+
+  private void emit(int op, int... operands) {
+    if (size + 1 + operands.length > code.length) {
+      code = Arrays.copyOf(code, Math.max(code.length * 2, size + 1 + operands.length));
+    }
+    code[size++] = op;
+    for (int operand : operands) {
+      code[size++] = operand;
+    }
+  }
+  private void fail(RuntimeException err) {
+    emit(FAIL, failures.size());
+    failures.add(err);
+  }
+  private void push(int count) {
+    depth += count;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  @Override
+  public Void visit(Literal expr) {
+    long bits = Double.doubleToRawLongBits(expr.value);
+    Integer index = constantIndex.get(bits);
+    if (index == null) {
+      index = constants.size();
+      constants.add(expr.value);
+      constantIndex.put(bits, index);
+    }
+    emit(CONST, index);
+    push(1);
+    return null;
+  }
+
+  @Override
+  public Void visit(Unary expr) {
+    expr.operand.accept(this);
+    switch (expr.operator.type) {
+      case MINUS:
+        emit(NEGATE);
+        break;
+      case MODULO:
+        emit(PERCENT);
+        break;
+      default: throw new AssertionError();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(Binary expr) {
+    expr.left.accept(this);
+    expr.right.accept(this);
+    switch (expr.operator.type) {
+      case PLUS: emit(ADD); break;
+      case MINUS: emit(SUBTRACT); break;
+      case ASTERISK: emit(MULTIPLY); break;
+      case SLASH: emit(DIVIDE); break;
+      case MOD: emit(REMAINDER); break;
+      case CARET: emit(POWER); break;
+      default: throw new AssertionError();
+    }
+    push(-1);
+    return null;
+  }
+
+  @Override
+  public Void visit(Group expr) {
+    return expr.expression.accept(this);
+  }
+
+  @Override
+  public Void visit(Variable expr) {
+    if (expr.slot >= 0) {
+      emit(LOAD, expr.slot);
+    } else if (expr.symbol() >= 0) {
+      emit(GLOBAL, expr.symbol());
+    } else {
+      fail(new NameError(expr.name.lexeme));
+    }
+    push(1);
+    return null;
+  }
+
+  @Override
+  public Void visit(Assignment expr) {
+    expr.value.accept(this);
+    emit(SET_GLOBAL, Symbols.intern(expr.target.lexeme));
+    return null;
+  }
+
+  @Override
+  public Void visit(Function expr) {
+    throw new ValueError("Nothing to compile.");
+  }
+
+  // Functions are looked up, and user functions' arity checked, before
+  // the arguments are evaluated; foreign functions check theirs after.
+  @Override
+  public Void visit(Call expr) {
+    Object func;
+    try {
+      func = state.getEnvironment().getFunction(expr.name.lexeme);
+    } catch (NameError err) {
+      fail(err);
+      push(1);
+      return null;
+    }
+    int arity = expr.args.size();
+    if (func instanceof Function && ((Function) func).params.size() != arity) {
+      fail(new ValueError("Invalid arity for function call."));
+      push(1);
+      return null;
+    } else if (!(func instanceof Function) && !(func instanceof ForeignFunction)) {
+      fail(new ValueError(String.format("Cannot call '%s'", expr.name.lexeme)));
+      push(1);
+      return null;
+    }
+    for (Expression arg : expr.args) {
+      arg.accept(this);
+    }
+    if (func instanceof Function) {
+      Function fn = (Function) func;
+      Integer index = functionIndex.get(fn);
+      if (index == null) {
+        index = functions.size();
+        functions.add(fn);
+        functionIndex.put(fn, index);
+      }
+      calls.add(new int[] { size, index });
+      emit(CALL, -1, arity, -1, -1);
+    } else {
+      ForeignFunction fn = (ForeignFunction) func;
+      try {
+        fn.arityCheck(arity);
+      } catch (BadFFI_Call err) {
+        fail(err);
+        push(1 - arity);
+        return null;
+      }
+      Integer index = foreignIndex.get(fn);
+      if (index == null) {
+        index = foreign.size();
+        foreign.add(fn);
+        foreignIndex.put(fn, index);
+      }
+      emit(FOREIGN, index, arity);
+    }
+    push(1 - arity);
+    return null;
+  }
+
+  @Override
+  public Void visit(Let expr) {
+    frameSize = Math.max(frameSize, expr.slot + 1);
+    expr.value.accept(this);
+    emit(STORE, expr.slot);
+    push(-1);
+    return expr.body.accept(this);
+  }
+}
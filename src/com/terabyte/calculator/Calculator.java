@@ -1,42 +1,284 @@
 package com.terabyte.calculator;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import com.terabyte.calculator.Environment.Checkpoint;
+import com.terabyte.calculator.Environment.DumpError;
+import com.terabyte.calculator.Environment.LoadError;
 import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.ExpressionCache.Entry;
 import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
 import com.terabyte.calculator.Parser.ParseError;
 import com.terabyte.calculator.Scanner.LexicalError;
 import com.terabyte.calculator.TreeInterpreter.ValueError;
 
 public class Calculator {
+  // What evaluate runs prepared trees on. They give the same results; the
+  // tree interpreter boxes every value, the unboxed one does not, and the
+  // bytecode one compiles each tree once for a loop that does not recurse
+  // on the Java stack.
+  public enum Engine {
+    TREE,
+    UNBOXED,
+    BYTECODE,
+  }
+
   private final Parser parser = new Parser();
-  private final TreeInterpreter interp = new TreeInterpreter();
+  private final TreeInterpreter interp;
+  private final DoubleInterpreter unboxed;
+  private VirtualMachine vm = null;
+  private Engine engine = Engine.UNBOXED;
+  private boolean memoization = false;
+  private final Optimizer optimizer;
+  private final ExpressionCache cache;
+  private final DoubleFormatter formatter = new DoubleFormatter();
+  private final StringBuilder output = new StringBuilder();
   private boolean isSuccessful = true;
   private Double lastResult;
+  private DependencyGraph graph = null;
+  private Metrics metrics = null;
+
+  public Calculator() {
+    this(new ExpressionCache());
+  }
+  // The cache may be shared between calculators and threads.
+  public Calculator(ExpressionCache cache) {
+    this(cache, new TreeInterpreter());
+  }
+  private Calculator(ExpressionCache cache, TreeInterpreter interp) {
+    this.cache = cache;
+    this.interp = interp;
+    this.unboxed = new DoubleInterpreter(interp);
+    this.optimizer = new Optimizer(interp);
+  }
+
+  // A calculator that starts from this one's variables and functions and
+  // shares its cache and metrics. Changes to either are not seen by the other.
+  public Calculator fork() {
+    Calculator copy = new Calculator(cache, interp.fork());
+    copy.engine = engine;
+    copy.memoization = memoization;
+    copy.metrics = metrics;
+    if (graph != null) {
+      copy.graph = graph.copy(copy, copy.interp);
+    }
+    return copy;
+  }
+  // A checkpoint rolls back the calculator it was taken from, not forks.
+  public Checkpoint snapshot() {
+    return interp.snapshot();
+  }
+  public void rollback(Checkpoint checkpoint) {
+    interp.rollback(checkpoint);
+  }
+
+  public void setEngine(Engine engine) {
+    this.engine = engine;
+  }
+  public Engine getEngine() {
+    return engine;
+  }
+  // Memoization and profiling are done by the tree interpreter, which
+  // evaluate uses while either is on, whatever the engine.
+  public void setMemoization(boolean enabled) {
+    memoization = enabled;
+    interp.setMemoization(enabled);
+  }
+  public void setProfiling(boolean enabled) {
+    interp.setProfiling(enabled);
+  }
+  // Null unless profiling.
+  public Profiler getProfiler() {
+    return interp.getProfiler();
+  }
+
+  public ExpressionCache getCache() {
+    return cache;
+  }
+  // Told about every call to evaluate, and every line of a ScriptRunner.
+  // Null, the default, measures nothing.
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+  public Metrics getMetrics() {
+    return metrics;
+  }
+  // Adds a built-in, such as ForeignFunction.of(Math::cbrt, true).
+  public void defineForeign(String name, ForeignFunction fn) {
+    interp.defineForeign(name, fn);
+  }
+  // The number of variables and functions defined, not counting built-ins.
+  public int getEnvironmentSize() {
+    return interp.getEnvironment().size();
+  }
+
+  // Optimized trees depend on which functions are defined, so an entry
+  // made under other definitions is optimized again from its parsed tree.
+  Expression prepare(String input) {
+    Entry entry = cache.get(input);
+    return prepare(input, entry, entry == null ? parser.parse(input) : null);
+  }
+  // For callers that already looked input up in the cache, and parsed it
+  // when it was not there.
+  Expression prepare(String input, Entry entry, Expression parsed) {
+    long version = interp.getEnvironment().getVersion();
+    Entry found = entry == null ? null : entry.find(version);
+    if (found == null) {
+      Expression tree = entry == null ? parsed : entry.parsed;
+      found = new Entry(tree, optimizer.optimize(tree), version, entry);
+      cache.put(input, found);
+    }
+    return found.optimized;
+  }
 
   public String evaluate(String input) {
+    long start = metrics == null ? 0 : System.nanoTime();
     try {
-      try {
-        lastResult = interp.evaluate(parser.parse(input));
-        isSuccessful = true;
-        if (lastResult != null) {
-          return String.format("%g", lastResult);
+      Double result = execute(prepare(input));
+      if (metrics != null) {
+        metrics.evaluated(System.nanoTime() - start);
+      }
+      if (result != null) {
+        output.setLength(0);
+        return formatter.appendGeneral(output, result).toString();
+      }
+      return "";
+    } catch (RuntimeException | StackOverflowError err) {
+      String message = describe(err);
+      if (message == null) {
+        throw err;
+      }
+      if (metrics != null) {
+        metrics.failed(ErrorKind.of(err), System.nanoTime() - start);
+      }
+      return message;
+    }
+  }
+  // Like evaluate, but the outcome is returned as a Result, which tells
+  // the kind of an error and where in the input it was found.
+  public Result tryEvaluate(String input) {
+    long start = metrics == null ? 0 : System.nanoTime();
+    try {
+      Double result = execute(prepare(input));
+      if (metrics != null) {
+        metrics.evaluated(System.nanoTime() - start);
+      }
+      return Result.of(result);
+    } catch (RuntimeException | StackOverflowError err) {
+      Result failure = Result.failure(err);
+      if (failure == null) {
+        throw err;
+      }
+      if (metrics != null) {
+        metrics.failed(failure.error, System.nanoTime() - start);
+      }
+      return failure;
+    }
+  }
+  // Binds a variable to an expression, as in "total = price * count", so
+  // that it is evaluated again whenever a name it reads is redefined.
+  // Returns its value, or an error message as evaluate does. Bindings are
+  // dropped by rollback and load, and copied by fork.
+  public String bind(String input) {
+    try {
+      if (graph == null) {
+        graph = new DependencyGraph(this, interp);
+      }
+      double value = graph.bind(input);
+      output.setLength(0);
+      return formatter.appendGeneral(output, value).toString();
+    } catch (RuntimeException | StackOverflowError err) {
+      String message = describe(err);
+      if (message == null) {
+        throw err;
+      }
+      return message;
+    }
+  }
+  // Keeps the variable's current value.
+  public void unbind(String name) {
+    if (graph != null) {
+      graph.unbind(Symbols.lookup(name));
+    }
+  }
+  public boolean isBound(String name) {
+    return graph != null && graph.isBound(Symbols.lookup(name));
+  }
+
+  Double execute(Expression prepared) {
+    try {
+      if (engine == Engine.TREE || memoization || interp.getProfiler() != null) {
+        lastResult = interp.evaluate(prepared);
+      } else if (engine == Engine.UNBOXED) {
+        lastResult = unboxed.execute(prepared);
+      } else {
+        if (vm == null) {
+          vm = new VirtualMachine(interp);
         }
-        return "";
-      } finally {
-        isSuccessful = false;
+        lastResult = vm.execute(prepared);
       }
-    } catch (LexicalError | ParseError err)   {
+      isSuccessful = true;
+      return lastResult;
+    } finally {
+      isSuccessful = false;
+    }
+  }
+  // The message shown for an error, or null if it is not a calculator error.
+  static String describe(Throwable err) {
+    if (err instanceof LexicalError || err instanceof ParseError) {
       return "Syntax Error!";
-    } catch (ValueError err) {
-      return String.format("Value Error! %s", err.what);
-    } catch (NameError err) {
-      return String.format("Undefined name '%s'!", err.name);
-    } catch (BadFFI_Call err) {
-      return String.format("Value Error! %s", err.what);
-    } catch (StackOverflowError err) {
+    } else if (err instanceof ValueError) {
+      return String.format("Value Error! %s", ((ValueError) err).what);
+    } else if (err instanceof NameError) {
+      return String.format("Undefined name '%s'!", ((NameError) err).name);
+    } else if (err instanceof BadFFI_Call) {
+      return String.format("Value Error! %s", ((BadFFI_Call) err).what);
+    } else if (err instanceof StackOverflowError) {
       return "Recursion Error!";
-    } catch (DumpError err) {
+    } else if (err instanceof DumpError) {
       return "Cannot dump state.";
+    } else if (err instanceof LoadError) {
+      return String.format("Cannot load state. %s", ((LoadError) err).what);
     }
+    return null;
+  }
+
+  public CompiledExpression compile(String input) {
+    return new ExpressionCompiler(interp).compile(prepare(input));
+  }
+
+  public double[] evaluate(String input, Map<String, double[]> columns) {
+    return new BatchEvaluator(interp).evaluate(prepare(input), columns);
+  }
+  // Like evaluate, split over the threads of the common ForkJoinPool.
+  // Nothing may change this calculator until it returns.
+  public double[] evaluateParallel(String input, Map<String, double[]> columns) {
+    return new ParallelEvaluator(interp).evaluate(prepare(input), columns);
+  }
+  // The sum and mean of the results, in parallel, without keeping them.
+  // Both are the same whatever the number of threads.
+  public double sumParallel(String input, Map<String, double[]> columns) {
+    return new ParallelEvaluator(interp).sum(prepare(input), columns);
+  }
+  public double meanParallel(String input, Map<String, double[]> columns) {
+    return new ParallelEvaluator(interp).mean(prepare(input), columns);
+  }
+  // Reads the columns from little-endian double files and writes the
+  // results to output in the same format. Returns the number of rows.
+  public long evaluate(String input, Map<String, Path> columns, Path output) throws IOException {
+    return new ColumnFileEvaluator(interp).evaluate(prepare(input), columns, output);
+  }
+  public long evaluateCsv(String input, Path csv, Path output) throws IOException {
+    return new ColumnFileEvaluator(interp).evaluateCsv(prepare(input), csv, output);
+  }
+
+  // Checkpoints the variables and user functions, and restores them.
+  public void save(Path path) throws IOException {
+    interp.save(path);
+  }
+  public void load(Path path) throws IOException {
+    interp.load(path);
   }
 
   public boolean hasResult() {
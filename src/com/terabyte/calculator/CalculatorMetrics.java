@@ -0,0 +1,161 @@
+package com.terabyte.calculator;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counts evaluations and errors by kind and records their latencies, for
+// a calculator and any forks sharing its metrics, and shows them together
+// with the calculator's environment size and cache statistics as a
+// standard MBean. Recording takes no locks.
+public class CalculatorMetrics implements Metrics, CalculatorMetricsMBean {
+  private static final ErrorKind[] KINDS = ErrorKind.values();
+
+  private final Calculator calculator;
+  private final LongAdder evaluations = new LongAdder();
+  private final LongAdder[] errors = new LongAdder[KINDS.length];
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  // The count and time at the last read of the rate.
+  private long lastCount = 0;
+  private long lastTime = System.nanoTime();
+
+  public CalculatorMetrics(Calculator calculator) {
+    this.calculator = calculator;
+    for (int i = 0; i < errors.length; i++) {
+      errors[i] = new LongAdder();
+    }
+  }
+
+  // Registers with the platform MBean server under
+  // com.terabyte.calculator:type=Calculator,name=<name>.
+  public ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName("com.terabyte.calculator:type=Calculator,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  @Override
+  public void evaluated(long nanos) {
+    evaluations.increment();
+    latencies.record(nanos);
+  }
+  @Override
+  public void failed(ErrorKind kind, long nanos) {
+    evaluations.increment();
+    errors[kind.ordinal()].increment();
+    latencies.record(nanos);
+  }
+
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+  public long getErrors(ErrorKind kind) {
+    return errors[kind.ordinal()].sum();
+  }
+
+  @Override
+  public long getEvaluations() {
+    return evaluations.sum();
+  }
+  @Override
+  public long getErrors() {
+    long sum = 0;
+    for (LongAdder count : errors) {
+      sum += count.sum();
+    }
+    return sum;
+  }
+  // Over the time since the previous read, or since the metrics were made
+  // or reset.
+  @Override
+  public synchronized double getEvaluationsPerSecond() {
+    long count = evaluations.sum();
+    long time = System.nanoTime();
+    double rate = time == lastTime ? 0 : (count - lastCount) * 1e9 / (time - lastTime);
+    lastCount = count;
+    lastTime = time;
+    return rate;
+  }
+
+  @Override
+  public long getLexicalErrors() {
+    return getErrors(ErrorKind.LEXICAL);
+  }
+  @Override
+  public long getParseErrors() {
+    return getErrors(ErrorKind.PARSE);
+  }
+  @Override
+  public long getValueErrors() {
+    return getErrors(ErrorKind.VALUE);
+  }
+  @Override
+  public long getNameErrors() {
+    return getErrors(ErrorKind.NAME);
+  }
+  @Override
+  public long getForeignCallErrors() {
+    return getErrors(ErrorKind.FOREIGN_CALL);
+  }
+  @Override
+  public long getRecursionErrors() {
+    return getErrors(ErrorKind.RECURSION);
+  }
+  // Failures to dump or load the environment.
+  @Override
+  public long getStateErrors() {
+    return getErrors(ErrorKind.DUMP) + getErrors(ErrorKind.LOAD);
+  }
+
+  @Override
+  public double getLatencyMean() {
+    return latencies.mean() / 1e3;
+  }
+  @Override
+  public double getLatency50thPercentile() {
+    return latencies.percentile(50) / 1e3;
+  }
+  @Override
+  public double getLatency90thPercentile() {
+    return latencies.percentile(90) / 1e3;
+  }
+  @Override
+  public double getLatency99thPercentile() {
+    return latencies.percentile(99) / 1e3;
+  }
+  @Override
+  public double getLatency999thPercentile() {
+    return latencies.percentile(99.9) / 1e3;
+  }
+  @Override
+  public double getLatencyMax() {
+    return latencies.max() / 1e3;
+  }
+
+  // Read from the calculator's thread without synchronization, so it may
+  // be slightly out of date.
+  @Override
+  public int getEnvironmentSize() {
+    return calculator.getEnvironmentSize();
+  }
+  @Override
+  public int getCacheSize() {
+    return calculator.getCache().size();
+  }
+  @Override
+  public double getCacheHitRate() {
+    return calculator.getCache().hitRate();
+  }
+
+  @Override
+  public synchronized void reset() {
+    evaluations.reset();
+    for (LongAdder count : errors) {
+      count.reset();
+    }
+    latencies.reset();
+    lastCount = 0;
+    lastTime = System.nanoTime();
+  }
+}
@@ -0,0 +1,30 @@
+package com.terabyte.calculator;
+
+// The attributes CalculatorMetrics shows through JMX. Latencies are in
+// microseconds.
+public interface CalculatorMetricsMBean {
+  long getEvaluations();
+  long getErrors();
+  double getEvaluationsPerSecond();
+
+  long getLexicalErrors();
+  long getParseErrors();
+  long getValueErrors();
+  long getNameErrors();
+  long getForeignCallErrors();
+  long getRecursionErrors();
+  long getStateErrors();
+
+  double getLatencyMean();
+  double getLatency50thPercentile();
+  double getLatency90thPercentile();
+  double getLatency99thPercentile();
+  double getLatency999thPercentile();
+  double getLatencyMax();
+
+  int getEnvironmentSize();
+  int getCacheSize();
+  double getCacheHitRate();
+
+  void reset();
+}
@@ -0,0 +1,350 @@
+package com.terabyte.calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import com.terabyte.calculator.Expression.*;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+// Evaluates an expression over files too large to load, a chunk of rows at
+// a time. The input is either a set of column files, raw little-endian
+// doubles with one value per row, or a CSV file whose header row names its
+// columns. The result is written as a column file. Only one chunk of each
+// column the expression reads is held in memory, whatever the file size.
+//
+// The output is written to a temporary file next to it and moved into
+// place once complete, so it may be one of the inputs, and a failed run
+// leaves any previous output intact.
+public class ColumnFileEvaluator {
+  public static final int CHUNK_ROWS = 1 << 20;
+  private static final long WINDOW = 64L << 20;
+
+  private final TreeInterpreter state;
+  private final BatchEvaluator evaluator;
+
+  public ColumnFileEvaluator(TreeInterpreter state) {
+    this.state = state;
+    this.evaluator = new BatchEvaluator(state);
+  }
+
+  // Evaluates one chunk of rows at a time and appends the results to the
+  // output file.
+  private final class Chunk {
+    final Expression expr;
+    final FileChannel out;
+    final HashMap<String, double[]> columns = new HashMap<>();
+    final double[] result = new double[CHUNK_ROWS];
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_ROWS * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    int rows = 0;
+    long total = 0;
+
+    Chunk(Expression expr, FileChannel out) {
+      this.expr = expr;
+      this.out = out;
+    }
+
+    double[] column(String name) {
+      double[] column = new double[CHUNK_ROWS];
+      columns.put(name, column);
+      return column;
+    }
+
+    void flush() throws IOException {
+      if (rows == 0) {
+        return;
+      }
+      evaluator.evaluate(expr, columns, 0, rows, result, 0);
+      buffer.clear();
+      buffer.asDoubleBuffer().put(result, 0, rows);
+      buffer.limit(rows * Double.BYTES);
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      total += rows;
+      rows = 0;
+    }
+  }
+
+  private interface Writing {
+    long write(FileChannel out) throws IOException;
+  }
+
+  private static long write(Path output, Writing writing) throws IOException {
+    Path absolute = output.toAbsolutePath();
+    Path temporary = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+    try {
+      long rows;
+      try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        rows = writing.write(out);
+      }
+      Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return rows;
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  // The names of the variables the expression reads.
+  private HashSet<String> reads(Expression expr) {
+    HashSet<Integer> symbols = new HashSet<>();
+    FreeNames.collect(expr, state.getEnvironment(), false, symbols);
+    HashSet<String> reads = new HashSet<>();
+    for (int symbol : symbols) {
+      reads.add(Symbols.name(symbol));
+    }
+    return reads;
+  }
+
+  // Binds every name in inputs to a column file, and returns the number of
+  // rows written. All columns must have the same length, but only those
+  // the expression reads are loaded.
+  public long evaluate(Expression expr, Map<String, Path> inputs, Path output) throws IOException {
+    return write(output, out -> evaluate(expr, inputs, out));
+  }
+  private long evaluate(Expression expr, Map<String, Path> inputs, FileChannel out) throws IOException {
+    HashSet<String> reads = reads(expr);
+    String[] names = inputs.keySet().toArray(new String[0]);
+    FileChannel[] channels = new FileChannel[names.length];
+    try {
+      long rows = -1;
+      for (int i = 0; i < names.length; i++) {
+        channels[i] = FileChannel.open(inputs.get(names[i]), StandardOpenOption.READ);
+        long size = channels[i].size();
+        if (size % Double.BYTES != 0) {
+          throw new ValueError(String.format("'%s' is not a column of doubles.", names[i]));
+        }
+        if (rows >= 0 && size / Double.BYTES != rows) {
+          throw new ValueError("Columns must have the same length.");
+        }
+        rows = size / Double.BYTES;
+      }
+      if (rows < 0) {
+        throw new ValueError("At least one column is required.");
+      }
+
+      Chunk chunk = new Chunk(expr, out);
+      double[][] columns = new double[names.length][];
+      for (int i = 0; i < names.length; i++) {
+        if (reads.contains(names[i])) {
+          columns[i] = chunk.column(names[i]);
+        }
+      }
+      for (long row = 0; row < rows; row += CHUNK_ROWS) {
+        int count = (int) Math.min(CHUNK_ROWS, rows - row);
+        for (int i = 0; i < names.length; i++) {
+          if (columns[i] == null) {
+            continue;
+          }
+          MappedByteBuffer window = channels[i].map(FileChannel.MapMode.READ_ONLY,
+              row * Double.BYTES, (long) count * Double.BYTES);
+          window.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(columns[i], 0, count);
+        }
+        chunk.rows = count;
+        chunk.flush();
+      }
+      return chunk.total;
+    } finally {
+      for (FileChannel channel : channels) {
+        if (channel != null) {
+          channel.close();
+        }
+      }
+    }
+  }
+
+  // Binds the names the expression reads to the CSV columns with the same
+  // header, and returns the number of rows written. Fields are separated by
+  // commas; empty fields are read as NaN and blank lines are skipped.
+  public long evaluateCsv(Expression expr, Path input, Path output) throws IOException {
+    return write(output, out -> evaluateCsv(expr, input, out));
+  }
+  private long evaluateCsv(Expression expr, Path input, FileChannel out) throws IOException {
+    HashSet<String> reads = reads(expr);
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+      Chunk chunk = new Chunk(expr, out);
+      double[][] targets = null;
+      long line = 0;
+      long size = in.size();
+      long position = 0;
+      long windowSize = WINDOW;
+      while (position < size) {
+        long length = Math.min(windowSize, size - position);
+        MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+        // As in ScriptRunner, only whole lines are taken from a window.
+        int end = (int) length;
+        if (position + length < size) {
+          while (end > 0 && window.get(end - 1) != '\n') {
+            end--;
+          }
+          if (end == 0) {
+            if (windowSize >= Integer.MAX_VALUE / 2) {
+              throw new IOException("Line too long.");
+            }
+            windowSize *= 2;
+            continue;
+          }
+        }
+        int start = 0;
+        while (start < end) {
+          int stop = start;
+          while (stop < end && window.get(stop) != '\n') {
+            stop++;
+          }
+          int next = stop + 1;
+          if (stop > start && window.get(stop - 1) == '\r') {
+            stop--;
+          }
+          line++;
+          if (stop > start) {
+            if (targets == null) {
+              targets = header(window, start, stop, reads, chunk);
+            } else {
+              row(window, start, stop, targets, chunk.rows, line);
+              if (++chunk.rows == CHUNK_ROWS) {
+                chunk.flush();
+              }
+            }
+          }
+          start = next;
+        }
+        position += end;
+      }
+      if (targets == null) {
+        throw new ValueError("The CSV file has no header.");
+      }
+      chunk.flush();
+      return chunk.total;
+    }
+  }
+
+  // Maps each field of the header to the column it fills, or to null when
+  // the expression does not read it.
+  private static double[][] header(ByteBuffer window, int start, int stop, HashSet<String> reads, Chunk chunk) {
+    byte[] bytes = new byte[stop - start];
+    window.get(start, bytes);
+    String[] names = new String(bytes, StandardCharsets.UTF_8).split(",", -1);
+    double[][] targets = new double[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i].trim();
+      if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+        name = name.substring(1, name.length() - 1);
+      }
+      if (reads.contains(name) && !chunk.columns.containsKey(name)) {
+        targets[i] = chunk.column(name);
+      }
+    }
+    return targets;
+  }
+
+  private static void row(ByteBuffer window, int start, int stop, double[][] targets, int row, long line) {
+    int field = 0;
+    int at = start;
+    while (true) {
+      int next = at;
+      while (next < stop && window.get(next) != ',') {
+        next++;
+      }
+      if (field < targets.length && targets[field] != null) {
+        targets[field][row] = parseField(window, at, next, line);
+      }
+      field++;
+      if (next == stop) {
+        break;
+      }
+      at = next + 1;
+    }
+    if (field != targets.length) {
+      throw new ValueError(String.format("Line %d has %d fields, expected %d.", line, field, targets.length));
+    }
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  // Reads decimal literals the way Lexer does. Anything else, such as
+  // "NaN" or "Infinity", is left to Double.parseDouble.
+  static double parseField(ByteBuffer window, int from, int to, long line) {
+    while (from < to && window.get(from) == ' ') {
+      from++;
+    }
+    while (to > from && window.get(to - 1) == ' ') {
+      to--;
+    }
+    if (to - from >= 2 && window.get(from) == '"' && window.get(to - 1) == '"') {
+      from++;
+      to--;
+    }
+    if (from == to) {
+      return Double.NaN;
+    }
+    int at = from;
+    boolean negative = false;
+    if (window.get(at) == '-' || window.get(at) == '+') {
+      negative = window.get(at++) == '-';
+    }
+    long digits = 0;
+    int count = 0;
+    int scale = 0;
+    int seen = 0;
+    boolean truncated = false;
+    for (; at < to && isDigit(window.get(at)); at++, seen++) {
+      if (count < 19) {
+        digits = digits * 10 + (window.get(at) - '0');
+        count += digits == 0 ? 0 : 1;
+      } else {
+        scale++;
+        truncated |= window.get(at) != '0';
+      }
+    }
+    if (at < to && window.get(at) == '.') {
+      for (at++; at < to && isDigit(window.get(at)); at++, seen++) {
+        if (count < 19) {
+          digits = digits * 10 + (window.get(at) - '0');
+          count += digits == 0 ? 0 : 1;
+          scale--;
+        } else {
+          truncated |= window.get(at) != '0';
+        }
+      }
+    }
+    int exponent = 0;
+    if (seen > 0 && at < to && (window.get(at) == 'e' || window.get(at) == 'E')) {
+      boolean negativeExponent = false;
+      if (++at < to && (window.get(at) == '-' || window.get(at) == '+')) {
+        negativeExponent = window.get(at++) == '-';
+      }
+      if (at == to || !isDigit(window.get(at))) {
+        seen = 0;
+      }
+      for (; at < to && isDigit(window.get(at)); at++) {
+        if (exponent < 100000) {
+          exponent = exponent * 10 + (window.get(at) - '0');
+        }
+      }
+      exponent = negativeExponent ? -exponent : exponent;
+    }
+    double value = seen > 0 && at == to ? DoubleParser.toDouble(digits, scale + exponent, truncated) : Double.NaN;
+    if (!Double.isNaN(value)) {
+      return negative ? -value : value;
+    }
+    byte[] bytes = new byte[to - from];
+    window.get(from, bytes);
+    String text = new String(bytes, StandardCharsets.UTF_8);
+    try {
+      return Double.parseDouble(text);
+    } catch (NumberFormatException err) {
+      throw new ValueError(String.format("Line %d: '%s' is not a number.", line, text));
+    }
+  }
+}
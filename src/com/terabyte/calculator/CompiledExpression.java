@@ -0,0 +1,93 @@
+package com.terabyte.calculator;
+
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+// Immutable once compiled and safe to share between threads. evaluate()
+// and evaluate(Environment) read the variables from an environment at the
+// time of the call; evaluate(Bindings) reads nothing but the given
+// bindings, which start out with the values the variables had when the
+// expression was compiled. A variable without a value fails only when
+// evaluation reaches it.
+public class CompiledExpression {
+  private static final double[] NO_ARGS = new double[0];
+
+  private final MethodHandle handle;
+  private final Environment environment;
+  private final String[] names;
+  // The symbols of names, -1 for those not yet defined. A lookup that
+  // succeeds always finds the same symbol, so racing to fill them in is
+  // harmless.
+  private final int[] symbols;
+  // The values the variables had when compiled, followed by a flag for
+  // each that had none, laid out as the compiled handle reads them.
+  private final double[] defaults;
+  private final HashMap<String, Integer> indices = new HashMap<>();
+
+  CompiledExpression(MethodHandle handle, Environment environment, String[] names) {
+    this.handle = handle;
+    this.environment = environment;
+    this.names = names;
+    this.symbols = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      symbols[i] = Symbols.lookup(names[i]);
+      indices.put(names[i], i);
+    }
+    this.defaults = read(environment);
+  }
+
+  private double[] read(Environment env) {
+    double[] values = new double[2 * symbols.length];
+    for (int i = 0; i < symbols.length; i++) {
+      int symbol = symbols[i];
+      if (symbol < 0) {
+        symbol = symbols[i] = Symbols.lookup(names[i]);
+      }
+      if (symbol < 0) {
+        values[symbols.length + i] = 1;
+        continue;
+      }
+      try {
+        values[i] = env.getDouble(symbol);
+      } catch (NameError err) {
+        values[symbols.length + i] = 1;
+      }
+    }
+    return values;
+  }
+
+  // Returns the index of a variable read by the expression, or -1.
+  public int indexOf(String name) {
+    Integer index = indices.get(name);
+    return index == null ? -1 : index;
+  }
+
+  public Bindings bind() {
+    return new Bindings(this, defaults.clone());
+  }
+
+  public double evaluate() {
+    return evaluate(environment);
+  }
+  public double evaluate(Environment env) {
+    return invoke(read(env));
+  }
+  public double evaluate(Bindings bindings) {
+    if (bindings.owner != this) {
+      throw new ValueError("Bindings belong to another expression.");
+    }
+    return invoke(bindings.values);
+  }
+
+  private double invoke(double[] values) {
+    try {
+      return (double) handle.invokeExact(values, NO_ARGS);
+    } catch (RuntimeException | Error err) {
+      throw err;
+    } catch (Throwable err) {
+      throw new AssertionError(err);
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package com.terabyte.calculator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import com.terabyte.calculator.Expression.*;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+// Keeps bound variables of a calculator up to date, spreadsheet style. A
+// bound variable remembers the assignment that defined it and the names it
+// reads, including those read by the user functions it calls. When one of
+// them is defined again, only the bound variables downstream of it are
+// evaluated again, each after all of its own inputs.
+//
+// A bound variable whose evaluation fails, or which is part of a cycle
+// made by redefining a function, is left undefined until its inputs
+// change again. Assigning to a bound variable unbinds it.
+class DependencyGraph implements Environment.Listener {
+  private static final class Node {
+    final int symbol;
+    final String source;
+    Assignment prepared;
+    int[] inputs = new int[0];
+    // The environment version the assignment was prepared at.
+    long version;
+
+    Node(int symbol, String source) {
+      this.symbol = symbol;
+      this.source = source;
+    }
+  }
+
+  private final Calculator calculator;
+  private final TreeInterpreter state;
+  private final HashMap<Integer, Node> nodes = new HashMap<>();
+  private final HashMap<Integer, ArrayList<Node>> dependents = new HashMap<>();
+  // Set while the graph defines variables itself.
+  private boolean updating = false;
+
+  DependencyGraph(Calculator calculator, TreeInterpreter state) {
+    this.calculator = calculator;
+    this.state = state;
+    state.getEnvironment().setListener(this);
+  }
+
+  // A graph with the same bindings for another calculator, whose variables
+  // have the same values.
+  DependencyGraph copy(Calculator calculator, TreeInterpreter state) {
+    DependencyGraph copy = new DependencyGraph(calculator, state);
+    for (Node node : nodes.values()) {
+      Node same = new Node(node.symbol, node.source);
+      same.prepared = node.prepared;
+      same.inputs = node.inputs;
+      same.version = node.version;
+      copy.nodes.put(same.symbol, same);
+      copy.link(same);
+    }
+    return copy;
+  }
+
+  boolean isBound(int symbol) {
+    return nodes.containsKey(symbol);
+  }
+
+  // Binds the target of an assignment to its value expression and returns
+  // the value. Nothing changes when it fails.
+  double bind(String source) {
+    Expression prepared = calculator.prepare(source);
+    if (!(prepared instanceof Assignment)) {
+      throw new ValueError("Only assignments can be bound.");
+    }
+    int symbol = Symbols.intern(((Assignment) prepared).target.lexeme);
+    Node node = new Node(symbol, source);
+    collect(node, (Assignment) prepared);
+    if (reaches(node.inputs, symbol)) {
+      throw new ValueError("Circular dependency.");
+    }
+    double value = evaluate(node);
+    unbind(symbol);
+    nodes.put(symbol, node);
+    link(node);
+    write(node, value);
+    propagate(symbol);
+    return value;
+  }
+
+  void unbind(int symbol) {
+    Node node = nodes.remove(symbol);
+    if (node != null) {
+      unlink(node);
+    }
+  }
+
+  @Override
+  public void defined(int symbol) {
+    if (updating) {
+      return;
+    }
+    unbind(symbol);
+    propagate(symbol);
+  }
+
+  @Override
+  public void reset() {
+    if (!updating) {
+      nodes.clear();
+      dependents.clear();
+    }
+  }
+
+  private void link(Node node) {
+    for (int input : node.inputs) {
+      dependents.computeIfAbsent(input, key -> new ArrayList<>()).add(node);
+    }
+  }
+  private void unlink(Node node) {
+    for (int input : node.inputs) {
+      ArrayList<Node> list = dependents.get(input);
+      list.remove(node);
+      if (list.isEmpty()) {
+        dependents.remove(input);
+      }
+    }
+  }
+
+  // Whether symbol is one of inputs, or an input of a bound variable
+  // upstream of them.
+  private boolean reaches(int[] inputs, int symbol) {
+    HashSet<Integer> seen = new HashSet<>();
+    ArrayDeque<Integer> pending = new ArrayDeque<>();
+    for (int input : inputs) {
+      pending.push(input);
+    }
+    while (!pending.isEmpty()) {
+      int input = pending.pop();
+      if (input == symbol) {
+        return true;
+      }
+      Node node = nodes.get(input);
+      if (node != null && seen.add(input)) {
+        for (int upstream : node.inputs) {
+          pending.push(upstream);
+        }
+      }
+    }
+    return false;
+  }
+
+  // Evaluates every bound variable downstream of symbol, in topological
+  // order.
+  private void propagate(int symbol) {
+    if (!dependents.containsKey(symbol)) {
+      return;
+    }
+    LinkedHashSet<Node> dirty = new LinkedHashSet<>();
+    ArrayDeque<Node> pending = new ArrayDeque<>(dependents.get(symbol));
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      if (dirty.add(node)) {
+        ArrayList<Node> next = dependents.get(node.symbol);
+        if (next != null) {
+          pending.addAll(next);
+        }
+      }
+    }
+    // Redefined functions may have changed what a node reads, and the
+    // trees optimized against them.
+    long version = state.getEnvironment().getVersion();
+    for (Node node : dirty) {
+      if (node.version != version) {
+        unlink(node);
+        try {
+          collect(node, (Assignment) calculator.prepare(node.source));
+        } catch (RuntimeException err) {
+          node.prepared = null;
+          node.inputs = new int[0];
+        }
+        link(node);
+      }
+    }
+
+    HashMap<Node, Integer> waiting = new HashMap<>();
+    ArrayDeque<Node> ready = new ArrayDeque<>();
+    for (Node node : dirty) {
+      int count = 0;
+      for (int input : node.inputs) {
+        Node upstream = nodes.get(input);
+        if (upstream != null && dirty.contains(upstream)) {
+          count++;
+        }
+      }
+      waiting.put(node, count);
+      if (count == 0) {
+        ready.add(node);
+      }
+    }
+    while (!ready.isEmpty()) {
+      Node node = ready.poll();
+      dirty.remove(node);
+      recompute(node);
+      ArrayList<Node> next = dependents.get(node.symbol);
+      if (next != null) {
+        for (Node downstream : next) {
+          Integer count = waiting.get(downstream);
+          if (count != null && dirty.contains(downstream)) {
+            waiting.put(downstream, count - 1);
+            if (count == 1) {
+              ready.add(downstream);
+            }
+          }
+        }
+      }
+    }
+    // Whatever is left waits on itself.
+    for (Node node : dirty) {
+      write(node, null);
+    }
+  }
+
+  private void recompute(Node node) {
+    Double value;
+    try {
+      value = evaluate(node);
+    } catch (RuntimeException | StackOverflowError err) {
+      if (Calculator.describe(err) == null) {
+        throw err;
+      }
+      value = null;
+    }
+    write(node, value);
+  }
+
+  private double evaluate(Node node) {
+    if (node.prepared == null) {
+      throw new ValueError("Value cannot be null.");
+    }
+    Double value = state.value(node.prepared.value);
+    if (value == null) {
+      throw new ValueError("Value cannot be null.");
+    }
+    return value;
+  }
+
+  private void write(Node node, Double value) {
+    updating = true;
+    try {
+      state.assign(Symbols.name(node.symbol), value);
+    } finally {
+      updating = false;
+    }
+  }
+
+  // Records the prepared assignment and the names its value reads, and the
+  // user functions it calls together with the names they read in turn.
+  private void collect(Node node, Assignment prepared) {
+    LinkedHashSet<Integer> inputs = new LinkedHashSet<>();
+    FreeNames.collect(prepared.value, state.getEnvironment(), true, inputs);
+    node.prepared = prepared;
+    node.inputs = new int[inputs.size()];
+    int i = 0;
+    for (int input : inputs) {
+      node.inputs[i++] = input;
+    }
+    node.version = state.getEnvironment().getVersion();
+  }
+}
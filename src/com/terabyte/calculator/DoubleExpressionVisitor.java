@@ -0,0 +1,13 @@
+package com.terabyte.calculator;
+
+public interface DoubleExpressionVisitor {
+	double visit(Expression.Literal expr);
+	double visit(Expression.Unary expr);
+	double visit(Expression.Binary expr);
+	double visit(Expression.Group expr);
+	double visit(Expression.Variable expr);
+	double visit(Expression.Assignment expr);
+	double visit(Expression.Function expr);
+	double visit(Expression.Call expr);
+	double visit(Expression.Let expr);
+}
\ No newline at end of file
@@ -0,0 +1,323 @@
+package com.terabyte.calculator;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+// Formats doubles without going through Formatter. Both modes start from
+// the shortest decimal that rounds back to the double, found with Giulietti's
+// Schubfach algorithm:
+//  - shortest writes it the way Double.toString does;
+//  - general writes it the way String.format("%g") does, rounding those
+//    digits half up to the requested number of significant digits.
+// Output is plain ASCII and does not depend on the locale. An instance
+// reuses one scratch buffer, so it must not be shared between threads.
+public class DoubleFormatter {
+  private static final int Q_MIN = -1074;
+  private static final long C_MIN = 1L << 52;
+  private static final int C_TINY = 3;
+  private static final int K_MIN = -324;
+  private static final int K_MAX = 292;
+  private static final long MASK_63 = (1L << 63) - 1;
+
+  // For each k, g = floor(10^-k 2^-r) + 1 with r picked so that g has 126
+  // bits, split into its upper and lower 63 bits.
+  private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+  static {
+    BigInteger mask = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+    for (int k = K_MIN; k <= K_MAX; k++) {
+      BigInteger power = BigInteger.TEN.pow(Math.abs(k));
+      BigInteger g;
+      if (k <= 0) {
+        int r = power.bitLength() - 126;
+        g = r >= 0 ? power.shiftRight(r) : power.shiftLeft(-r);
+      } else {
+        g = BigInteger.ONE.shiftLeft(power.bitLength() + 125).divide(power);
+      }
+      g = g.add(BigInteger.ONE);
+      G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+      G[2 * (k - K_MIN) + 1] = g.and(mask).longValue();
+    }
+  }
+
+  private final byte[] buffer = new byte[40];
+  private int length;
+  // The decimal found for the last double: digits[0..count) times
+  // 10^exponent, read as d.ddd, without trailing zeros.
+  private final byte[] digits = new byte[20];
+  private int count;
+  private int exponent;
+
+  public StringBuilder appendShortest(StringBuilder out, double v) {
+    shortest(v);
+    for (int i = 0; i < length; i++) {
+      out.append((char) buffer[i]);
+    }
+    return out;
+  }
+  public StringBuilder appendGeneral(StringBuilder out, double v) {
+    return appendGeneral(out, v, 6);
+  }
+  public StringBuilder appendGeneral(StringBuilder out, double v, int precision) {
+    general(v, precision);
+    for (int i = 0; i < length; i++) {
+      out.append((char) buffer[i]);
+    }
+    return out;
+  }
+  public ByteBuffer putShortest(ByteBuffer out, double v) {
+    shortest(v);
+    return out.put(buffer, 0, length);
+  }
+  public ByteBuffer putGeneral(ByteBuffer out, double v) {
+    return putGeneral(out, v, 6);
+  }
+  public ByteBuffer putGeneral(ByteBuffer out, double v, int precision) {
+    general(v, precision);
+    return out.put(buffer, 0, length);
+  }
+
+  private boolean special(double v) {
+    length = 0;
+    if (v != v) {
+      put("NaN");
+      return true;
+    }
+    if (Double.doubleToRawLongBits(v) < 0) {
+      buffer[length++] = '-';
+    }
+    if (Double.isInfinite(v)) {
+      put("Infinity");
+      return true;
+    }
+    return false;
+  }
+  private void put(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      buffer[length++] = (byte) text.charAt(i);
+    }
+  }
+  private void putExponent(int e, boolean padded) {
+    if (e < 0) {
+      buffer[length++] = '-';
+      e = -e;
+    } else if (padded) {
+      buffer[length++] = '+';
+    }
+    if (e >= 100) {
+      buffer[length++] = (byte) ('0' + e / 100);
+      e %= 100;
+      buffer[length++] = (byte) ('0' + e / 10);
+    } else if (e >= 10 || padded) {
+      buffer[length++] = (byte) ('0' + e / 10);
+    }
+    buffer[length++] = (byte) ('0' + e % 10);
+  }
+
+  private void shortest(double v) {
+    if (special(v)) {
+      return;
+    }
+    if (v == 0) {
+      put("0.0");
+      return;
+    }
+    decimal(Math.abs(v));
+    if (exponent >= -3 && exponent < 7) {
+      // Plain notation, always with a fractional part.
+      if (exponent >= 0) {
+        for (int i = 0; i <= exponent; i++) {
+          buffer[length++] = i < count ? digits[i] : (byte) '0';
+        }
+        buffer[length++] = '.';
+        if (count <= exponent + 1) {
+          buffer[length++] = '0';
+        }
+        for (int i = exponent + 1; i < count; i++) {
+          buffer[length++] = digits[i];
+        }
+      } else {
+        buffer[length++] = '0';
+        buffer[length++] = '.';
+        for (int i = -1; i > exponent; i--) {
+          buffer[length++] = '0';
+        }
+        for (int i = 0; i < count; i++) {
+          buffer[length++] = digits[i];
+        }
+      }
+    } else {
+      buffer[length++] = digits[0];
+      buffer[length++] = '.';
+      if (count == 1) {
+        buffer[length++] = '0';
+      }
+      for (int i = 1; i < count; i++) {
+        buffer[length++] = digits[i];
+      }
+      buffer[length++] = 'E';
+      putExponent(exponent, false);
+    }
+  }
+
+  private void general(double v, int precision) {
+    if (special(v)) {
+      return;
+    }
+    precision = Math.max(precision, 1);
+    if (v == 0) {
+      digits[0] = '0';
+      count = 1;
+      exponent = 0;
+    } else {
+      decimal(Math.abs(v));
+    }
+    if (count > precision) {
+      count = precision;
+      if (digits[precision] >= '5') {
+        int i = precision - 1;
+        while (i >= 0 && digits[i] == '9') {
+          i--;
+        }
+        if (i < 0) {
+          digits[0] = '1';
+          count = 1;
+          exponent++;
+        } else {
+          digits[i]++;
+          count = i + 1;
+        }
+      }
+    }
+    if (exponent >= -4 && exponent < precision) {
+      int fraction = precision - 1 - exponent;
+      if (exponent >= 0) {
+        for (int i = 0; i <= exponent; i++) {
+          buffer[length++] = i < count ? digits[i] : (byte) '0';
+        }
+      } else {
+        buffer[length++] = '0';
+      }
+      if (fraction > 0) {
+        buffer[length++] = '.';
+        for (int i = exponent + 1; i < exponent + 1 + fraction; i++) {
+          buffer[length++] = i >= 0 && i < count ? digits[i] : (byte) '0';
+        }
+      }
+    } else {
+      buffer[length++] = digits[0];
+      if (precision > 1) {
+        buffer[length++] = '.';
+        for (int i = 1; i < precision; i++) {
+          buffer[length++] = i < count ? digits[i] : (byte) '0';
+        }
+      }
+      buffer[length++] = 'e';
+      putExponent(exponent, true);
+    }
+  }
+
+  // Finds the shortest decimal for a finite positive v. See Giulietti,
+  // "The Schubfach way to render doubles" (2020).
+  private void decimal(double v) {
+    long bits = Double.doubleToRawLongBits(v);
+    long t = bits & (C_MIN - 1);
+    int bq = (int) (bits >>> 52) & 0x7FF;
+    if (bq != 0) {
+      int mq = -Q_MIN + 1 - bq;
+      long c = C_MIN | t;
+      // Integers below 2^53 are their own shortest decimal.
+      if (0 < mq && mq < 53) {
+        long f = c >> mq;
+        if (f << mq == c) {
+          digits(f, 0);
+          return;
+        }
+      }
+      schubfach(-mq, c, 0);
+    } else if (t < C_TINY) {
+      schubfach(Q_MIN, 10 * t, -1);
+    } else {
+      schubfach(Q_MIN, t, 0);
+    }
+  }
+
+  private static int flog10pow2(int e) {
+    return (int) (e * 661_971_961_083L >> 41);
+  }
+  private static int flog10threeQuartersPow2(int e) {
+    return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+  }
+  private static int flog2pow10(int e) {
+    return (int) (e * 913_124_641_741L >> 38);
+  }
+
+  private void schubfach(int q, long c, int dk) {
+    int out = (int) c & 1;
+    long cb = c << 2;
+    long cbr = cb + 2;
+    long cbl;
+    int k;
+    if (c != C_MIN || q == Q_MIN) {
+      cbl = cb - 2;
+      k = flog10pow2(q);
+    } else {
+      cbl = cb - 1;
+      k = flog10threeQuartersPow2(q);
+    }
+    int h = q + flog2pow10(-k) + 2;
+    long g1 = G[2 * (k - K_MIN)];
+    long g0 = G[2 * (k - K_MIN) + 1];
+    long vb = roundOdd(g1, g0, cb << h);
+    long vbl = roundOdd(g1, g0, cbl << h);
+    long vbr = roundOdd(g1, g0, cbr << h);
+    long s = vb >> 2;
+    if (s >= 100) {
+      // Try the candidates with one digit less first.
+      long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+      long tp10 = sp10 + 10;
+      boolean upin = vbl + out <= sp10 << 2;
+      boolean wpin = (tp10 << 2) + out <= vbr;
+      if (upin != wpin) {
+        digits(upin ? sp10 : tp10, k);
+        return;
+      }
+    }
+    long t = s + 1;
+    boolean uin = vbl + out <= s << 2;
+    boolean win = (t << 2) + out <= vbr;
+    if (uin != win) {
+      digits(uin ? s : t, k + dk);
+      return;
+    }
+    long cmp = vb - (s + t << 1);
+    digits(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk);
+  }
+
+  private static long roundOdd(long g1, long g0, long cp) {
+    long x1 = Math.multiplyHigh(g0, cp);
+    long y0 = g1 * cp;
+    long y1 = Math.multiplyHigh(g1, cp);
+    long z = (y0 >>> 1) + x1;
+    long vbp = y1 + (z >>> 63);
+    return vbp | (z & MASK_63) + MASK_63 >>> 63;
+  }
+
+  // Stores f 10^e as digits and exponent.
+  private void digits(long f, int e) {
+    while (f % 10 == 0) {
+      f /= 10;
+      e++;
+    }
+    int n = 0;
+    for (long rest = f; rest > 0; rest /= 10) {
+      n++;
+    }
+    for (int i = n - 1; i >= 0; i--) {
+      digits[i] = (byte) ('0' + f % 10);
+      f /= 10;
+    }
+    count = n;
+    exponent = e + n - 1;
+  }
+}
@@ -0,0 +1,218 @@
+package com.terabyte.calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.Expression.*;
+import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
+import com.terabyte.calculator.ForeignFunction.Primitive1;
+import com.terabyte.calculator.ForeignFunction.Primitive2;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+// Unboxed counterpart of TreeInterpreter that evaluates against the same
+// globals, and the engine Calculator uses by default. Parameters live in
+// frames on one reusable double[] stack and are addressed by the slots
+// assigned by the Resolver; every other name is looked up among the
+// globals. Assignments go through the interpreter, which tells the
+// memoizer and bound variables about them.
+public class DoubleInterpreter implements DoubleExpressionVisitor {
+  private final TreeInterpreter state;
+  private final Environment globals;
+  private double[] stack = new double[64];
+  private int fp = 0;
+  private int top = 0;
+
+  public DoubleInterpreter(TreeInterpreter state) {
+    this.state = state;
+    this.globals = state.getEnvironment();
+  }
+
+  // Statements and empty input have no value and yield NaN.
+  public double evaluate(Expression expr) {
+    Double result = execute(expr);
+    return result == null ? Double.NaN : result;
+  }
+
+  // Evaluates as TreeInterpreter.evaluate does: statements, empty input
+  // and foreign functions called on their own that return nothing, such
+  // as dump_env(), yield null.
+  Double execute(Expression expr) {
+    if (expr == null) {
+      return null;
+    }
+    if (expr instanceof Call && mayReturnNothing(globals, (Call) expr)) {
+      return state.evaluate(expr);
+    }
+    Events.Evaluate event = new Events.Evaluate();
+    event.begin();
+    // Listeners may evaluate while an assignment is made, so a nested
+    // evaluation gets a frame above the current one.
+    int callerFp = fp;
+    int callerTop = top;
+    fp = top;
+    double result;
+    try {
+      result = expr.accept(this);
+    } finally {
+      fp = callerFp;
+      top = callerTop;
+      event.commit();
+    }
+    if (expr instanceof Assignment || expr instanceof Function) {
+      return null;
+    }
+    state.assign("R", result);
+    return result;
+  }
+
+  // Whether call is to a foreign function that might return null.
+  static boolean mayReturnNothing(Environment globals, Call call) {
+    Object func;
+    try {
+      func = globals.getFunction(call.name.lexeme);
+    } catch (NameError err) {
+      return false;
+    }
+    return func instanceof ForeignFunction && !(func instanceof Primitive1 || func instanceof Primitive2);
+  }
+
+  private void reserve(int size) {
+    if (size > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    }
+  }
+
+  @Override
+  public double visit(Literal expr) {
+    return expr.value;
+  }
+
+  @Override
+  public double visit(Unary expr) {
+    double res = expr.operand.accept(this);
+    switch (expr.operator.type) {
+      case MINUS:
+        return -res;
+      case MODULO:
+        return res / 100.0;
+      default: throw new AssertionError();
+    }
+  }
+
+  @Override
+  public double visit(Binary expr) {
+    double left = expr.left.accept(this);
+    double right = expr.right.accept(this);
+    switch (expr.operator.type) {
+      case PLUS:
+        return left + right;
+      case MINUS:
+        return left - right;
+      case ASTERISK:
+        return left * right;
+      case SLASH:
+        if (right == 0) {
+          throw new ValueError("Division by zero is undefined.");
+        }
+        return left / right;
+      case MOD:
+        if (right == 0) {
+          throw new ValueError("Division by zero is undefined.");
+        }
+        return left % right;
+      case CARET:
+        return Math.pow(left, right);
+      default: throw new AssertionError();
+    }
+  }
+
+  @Override
+  public double visit(Group expr) {
+    return expr.expression.accept(this);
+  }
+
+  @Override
+  public double visit(Variable expr) {
+    if (expr.slot >= 0) {
+      return stack[fp + expr.slot];
+    }
+    return globals.getDouble(expr);
+  }
+
+  @Override
+  public double visit(Assignment expr) {
+    double value = expr.value.accept(this);
+    state.assign(expr.target.lexeme, value);
+    return Double.NaN;
+  }
+
+  @Override
+  public double visit(Function expr) {
+    globals.defineFunction(expr.name.lexeme, expr);
+    return Double.NaN;
+  }
+
+  @Override
+  public double visit(Call expr) {
+    Object func = globals.getFunction(expr.name.lexeme);
+    if (func instanceof Function) {
+      Function fn = (Function) func;
+      int arity = expr.args.size();
+      if (fn.params.size() != arity) {
+        throw new ValueError("Invalid arity for function call.");
+      }
+      // Arguments are evaluated in the caller's frame, into the slots
+      // reserved above it for the callee.
+      int base = top;
+      int callerFp = fp;
+      reserve(base + arity);
+      top = base + arity;
+      try {
+        for (int i = 0; i < arity; i++) {
+          double value = expr.args.get(i).accept(this);
+          stack[base + i] = value;
+        }
+        fp = base;
+        return fn.expression.accept(this);
+      } finally {
+        fp = callerFp;
+        top = base;
+      }
+    } else if (func instanceof Primitive1 && expr.args.size() == 1) {
+      return ((Primitive1) func).call(expr.args.get(0).accept(this));
+    } else if (func instanceof Primitive2 && expr.args.size() == 2) {
+      double x = expr.args.get(0).accept(this);
+      return ((Primitive2) func).call(x, expr.args.get(1).accept(this));
+    } else if (func instanceof ForeignFunction) {
+      ArrayList<Double> values = new ArrayList<>(expr.args.size());
+      for (Expression value : expr.args) {
+        values.add(value.accept(this));
+      }
+      ForeignFunction fn = (ForeignFunction) func;
+      fn.arityCheck(expr.args.size());
+      Double n;
+      try {
+        n = fn.execute(state, values);
+      } catch (Throwable err) {
+        throw new BadFFI_Call("Something went wrong.");
+      }
+      if (n == null) {
+        throw new ValueError("Value cannot be null.");
+      }
+      return n;
+    }
+    throw new ValueError(String.format("Cannot call '%s'", expr.name.lexeme));
+  }
+
+  @Override
+  public double visit(Let expr) {
+    double value = expr.value.accept(this);
+    int slot = fp + expr.slot;
+    if (slot >= top) {
+      reserve(slot + 1);
+      top = slot + 1;
+    }
+    stack[slot] = value;
+    return expr.body.accept(this);
+  }
+}
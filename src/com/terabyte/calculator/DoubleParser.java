@@ -0,0 +1,114 @@
+package com.terabyte.calculator;
+
+import java.math.BigInteger;
+
+// Turns the significant digits and decimal exponent of a literal into the
+// nearest double, following Eisel and Lemire: the digits are multiplied by
+// a 128-bit approximation of the power of ten, and the result is used
+// only when the approximation provably cannot change the rounding.
+// Otherwise NaN is returned and the caller falls back to an exact parser.
+public class DoubleParser {
+  private static final int MIN_EXPONENT = -348;
+  private static final int MAX_EXPONENT = 347;
+  // Truncated 128-bit mantissas of the powers of ten, high and low halves.
+  private static final long[] HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+  private static final long[] LOW = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+
+  static {
+    BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    for (int e = MIN_EXPONENT; e <= MAX_EXPONENT; e++) {
+      BigInteger power = BigInteger.TEN.pow(Math.abs(e));
+      BigInteger mantissa;
+      if (e >= 0) {
+        int shift = power.bitLength() - 128;
+        mantissa = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+      } else {
+        mantissa = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power);
+      }
+      HIGH[e - MIN_EXPONENT] = mantissa.shiftRight(64).longValue();
+      LOW[e - MIN_EXPONENT] = mantissa.and(mask).longValue();
+    }
+  }
+
+  // digits is read as unsigned. When truncated is set, digits only holds
+  // the leading digits of a longer literal, whose value lies between
+  // digits and digits + 1 (times the power of ten).
+  public static double toDouble(long digits, int exponent, boolean truncated) {
+    if (!truncated) {
+      if (digits == 0) {
+        return 0;
+      }
+      if (digits > 0 && digits < (1L << 53)) {
+        // Both operands are exact, so one rounding gives the right answer.
+        if (exponent >= 0 && exponent <= 22) {
+          return digits * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && exponent >= -22) {
+          return digits / POWERS_OF_TEN[-exponent];
+        }
+      }
+      return eiselLemire(digits, exponent);
+    }
+    double lower = eiselLemire(digits, exponent);
+    double upper = eiselLemire(digits + 1, exponent);
+    return lower == upper ? lower : Double.NaN;
+  }
+
+  private static long multiplyHigh(long x, long y) {
+    return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+  }
+
+  private static double eiselLemire(long digits, int exponent) {
+    if (digits == 0 || exponent < MIN_EXPONENT || exponent > MAX_EXPONENT) {
+      return Double.NaN;
+    }
+    int zeros = Long.numberOfLeadingZeros(digits);
+    digits <<= zeros;
+    long exponent2 = (217706L * exponent >> 16) + 64 + 1023 - zeros;
+
+    int index = exponent - MIN_EXPONENT;
+    long high = multiplyHigh(digits, HIGH[index]);
+    long low = digits * HIGH[index];
+    // The low bits are all ones, so the truncated half of the power might
+    // carry into them.
+    if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + digits, digits) < 0) {
+      long extraHigh = multiplyHigh(digits, LOW[index]);
+      long extraLow = digits * LOW[index];
+      long mergedHigh = high;
+      long mergedLow = low + extraHigh;
+      if (Long.compareUnsigned(mergedLow, low) < 0) {
+        mergedHigh++;
+      }
+      if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow == -1
+          && Long.compareUnsigned(extraLow + digits, digits) < 0) {
+        return Double.NaN;
+      }
+      high = mergedHigh;
+      low = mergedLow;
+    }
+
+    long top = high >>> 63;
+    long mantissa = high >>> (top + 9);
+    exponent2 -= 1 ^ top;
+    // Exactly halfway between two doubles: the approximation cannot tell
+    // which way to round.
+    if (low == 0 && (high & 0x1FF) == 0 && (mantissa & 3) == 1) {
+      return Double.NaN;
+    }
+    mantissa += mantissa & 1;
+    mantissa >>>= 1;
+    if (mantissa >>> 53 > 0) {
+      mantissa >>>= 1;
+      exponent2++;
+    }
+    // Subnormal, infinite and out of range results are left to the fallback.
+    if (exponent2 <= 0 || exponent2 >= 0x7FF) {
+      return Double.NaN;
+    }
+    return Double.longBitsToDouble(exponent2 << 52 | mantissa & 0x000FFFFFFFFFFFFFL);
+  }
+}
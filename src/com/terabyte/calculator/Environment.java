@@ -1,8 +1,9 @@
 package com.terabyte.calculator;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.terabyte.calculator.Expression.Function;
+import com.terabyte.calculator.Expression.Variable;
 
 public class Environment {
 	@SuppressWarnings("serial")
@@ -10,7 +11,7 @@ public class Environment {
 	  public final String name;
 	  
 	  public NameError(String name) {
-	    super("Name Error");
+	    super("Name Error", null, false, false);
 	    this.name = name;
 	  }
 	}
@@ -18,46 +19,249 @@ public class Environment {
 	@SuppressWarnings("serial")
 	public static class DumpError extends RuntimeException {
 		public DumpError() {
-			super("Cannot dump environment.");
+			super("Cannot dump environment.", null, false, false);
 		}
 	}
+
+	@SuppressWarnings("serial")
+	public static class LoadError extends RuntimeException {
+	  public final String what;
+	  
+	  public LoadError(String what) {
+	    super("Cannot load environment.", null, false, false);
+	    this.what = what;
+	  }
+	}
 	
 	public final Environment enclosing;
-	private final HashMap<String, Object> values = new HashMap<>();
+	private SymbolTrie entries = SymbolTrie.EMPTY;
+	// Nodes of entries made under this token are changed in place. It is
+	// renewed whenever entries is shared, and dropped when frozen.
+	private Object edit = this;
+	// Renewed whenever the set of functions changes, so that callers holding
+	// trees optimized against them can tell they are stale. Environments
+	// agree on a version only when they see the same functions: a new one,
+	// or a cleared one, has its enclosing environment's version until a
+	// function is defined in it, and forks and checkpoints keep the version
+	// of the state they copy. Other versions are unique.
+	private static final AtomicLong versions = new AtomicLong();
+	private long version;
+	// Frozen environments are shared between threads and never change again.
+	private boolean frozen = false;
+	private Listener listener = null;
+	
+	// Told about every definition made in the environment it listens to.
+	interface Listener {
+	  void defined(int symbol);
+	  // Everything may have changed at once.
+	  void reset();
+	}
+	
+	// The state of an environment at some point, to roll it back to.
+	public static final class Checkpoint {
+	  private final Environment enclosing;
+	  private final SymbolTrie entries;
+	  private final long version;
+	  private final long enclosingVersion;
+	  
+	  private Checkpoint(Environment enclosing, SymbolTrie entries, long version) {
+	    this.enclosing = enclosing;
+	    this.entries = entries;
+	    this.version = version;
+	    this.enclosingVersion = enclosing == null ? 0 : enclosing.version;
+	  }
+	}
 	
 	public Environment(Environment enclosing) {
 	  this.enclosing = enclosing;
+	  this.version = enclosing.version;
 	}
 	public Environment() {
 	  enclosing = null;
+	  version = versions.incrementAndGet();
+	}
+	private Environment(Environment enclosing, SymbolTrie entries, long version) {
+	  this.enclosing = enclosing;
+	  this.entries = entries;
+	  this.version = version;
 	}
 	
-	public HashMap<String, Object> getMap() {
-	  return values;
+	SymbolTrie getEntries() {
+	  return entries;
+	}
+	long getVersion() {
+	  return version;
+	}
+	// The number of names defined here, not counting enclosing environments.
+	int size() {
+	  int size = 0;
+	  for (int symbol = entries.next(0); symbol >= 0; symbol = entries.next(symbol + 1)) {
+	    size++;
+	  }
+	  return size;
+	}
+	void setListener(Listener listener) {
+	  this.listener = listener;
+	}
+	private void notify(int symbol) {
+	  if (listener != null) {
+	    listener.defined(symbol);
+	  }
+	}
+	private void notifyReset() {
+	  if (listener != null) {
+	    listener.reset();
+	  }
+	}
+	void freeze() {
+	  frozen = true;
+	  edit = null;
+	}
+	private void checkMutable() {
+	  if (frozen) {
+	    throw new IllegalStateException("A frozen environment cannot be modified.");
+	  }
+	}
+	private void share() {
+	  if (!frozen) {
+	    edit = new Object();
+	  }
+	}
+	
+	// Snapshots, rollbacks and forks take constant time: the entries are
+	// shared, and only the parts changed afterwards are copied.
+	public Checkpoint snapshot() {
+	  share();
+	  return new Checkpoint(enclosing, entries, version);
+	}
+	public void rollback(Checkpoint checkpoint) {
+	  checkMutable();
+	  if (checkpoint.enclosing != enclosing) {
+	    throw new IllegalArgumentException("The checkpoint belongs to another environment.");
+	  }
+	  share();
+	  entries = checkpoint.entries;
+	  if (enclosing == null || enclosing.version == checkpoint.enclosingVersion) {
+	    version = checkpoint.version;
+	  } else {
+	    version = versions.incrementAndGet();
+	  }
+	  notifyReset();
+	}
+	// A mutable copy with the same enclosing environment. Neither the copy
+	// nor this environment sees the changes made to the other afterwards,
+	// and the copy may be handed to another thread.
+	public Environment fork() {
+	  return fork(enclosing);
+	}
+	// A copy on top of another enclosing environment, itself a fork of this
+	// one's.
+	Environment fork(Environment enclosing) {
+	  share();
+	  return new Environment(enclosing, entries, version);
+	}
+	// The enclosing environment now has another function under name.
+	void enclosingChanged(String name) {
+	  version = versions.incrementAndGet();
+	  notify(Symbols.intern(name));
+	}
+	
+	void clear() {
+	  checkMutable();
+	  entries = SymbolTrie.EMPTY;
+	  version = enclosing == null ? versions.incrementAndGet() : enclosing.version;
+	  notifyReset();
 	}
 	public void defineDouble(String name, Double x) {
-	  values.put(name, (Object) x);
+	  checkMutable();
+	  if (x == null) {
+	    int symbol = Symbols.intern(name);
+	    if (entries.getFunction(symbol) != null) {
+	      version = versions.incrementAndGet();
+	    }
+	    entries = entries.remove(edit, symbol);
+	    notify(symbol);
+	    return;
+	  }
+	  defineDouble(Symbols.intern(name), x);
+	}
+	public void defineDouble(int symbol, double x) {
+	  checkMutable();
+	  if (entries.getFunction(symbol) != null) {
+	    version = versions.incrementAndGet();
+	  } else if (enclosing != null && !entries.hasDouble(symbol) && enclosing.hasFunction(symbol)) {
+	    // Hiding an enclosing function changes what calls refer to.
+	    version = versions.incrementAndGet();
+	  }
+	  entries = entries.putDouble(edit, symbol, x);
+	  notify(symbol);
 	}
 	public void defineFunction(String name, Function fn) {
-	  values.put(name, (Function) fn);
+	  checkMutable();
+	  int symbol = Symbols.intern(name);
+	  entries = entries.putFunction(edit, symbol, fn);
+	  version = versions.incrementAndGet();
+	  notify(symbol);
 	}
 	public void defineForeign(String name, ForeignFunction fn) {
-	  values.put(name, (ForeignFunction) fn);
+	  checkMutable();
+	  int symbol = Symbols.intern(name);
+	  entries = entries.putFunction(edit, symbol, fn);
+	  version = versions.incrementAndGet();
+	  notify(symbol);
 	}
 	
+	private boolean hasFunction(int symbol) {
+	  for (Environment env = this; env != null; env = env.enclosing) {
+	    if (env.entries.hasDouble(symbol)) {
+	      return false;
+	    }
+	    if (env.entries.getFunction(symbol) != null) {
+	      return true;
+	    }
+	  }
+	  return false;
+	}
 	private Object get(String name) {
-	  Object got = values.get(name);
-	  if (got == null && enclosing != null) {
-	    return enclosing.get(name);
+	  int symbol = Symbols.lookup(name);
+	  if (symbol < 0) {
+	    return null;
+	  }
+	  for (Environment env = this; env != null; env = env.enclosing) {
+	    if (env.entries.hasDouble(symbol)) {
+	      return env.entries.getDouble(symbol);
+	    }
+	    Object got = env.entries.getFunction(symbol);
+	    if (got != null) {
+	      return got;
+	    }
 	  }
-	  return got;
+	  return null;
 	}
 	public Double getDouble(String name) {
-	  Object extracted = get(name);
-	  if (!(extracted instanceof Double)) {
+	  int symbol = Symbols.lookup(name);
+	  if (symbol < 0) {
 	    throw new NameError(name);
 	  }
-	  return (Double) extracted;
+	  return getDouble(symbol);
+	}
+	public double getDouble(Variable var) {
+	  int symbol = var.symbol();
+	  if (symbol < 0) {
+	    throw new NameError(var.name.lexeme);
+	  }
+	  return getDouble(symbol);
+	}
+	public double getDouble(int symbol) {
+	  for (Environment env = this; env != null; env = env.enclosing) {
+	    if (env.entries.hasDouble(symbol)) {
+	      return env.entries.getDouble(symbol);
+	    }
+	    if (env.entries.getFunction(symbol) != null) {
+	      break;
+	    }
+	  }
+	  throw new NameError(Symbols.name(symbol));
 	}
 	public Object getFunction(String name) {
 	  Object extracted = get(name);
@@ -66,4 +270,4 @@ public class Environment {
 	  }
 	  return extracted;
 	}
-}
\ No newline at end of file
+}
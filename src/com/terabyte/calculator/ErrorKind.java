@@ -0,0 +1,46 @@
+package com.terabyte.calculator;
+
+import com.terabyte.calculator.Environment.DumpError;
+import com.terabyte.calculator.Environment.LoadError;
+import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
+import com.terabyte.calculator.Parser.ParseError;
+import com.terabyte.calculator.Scanner.LexicalError;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+// The ways evaluating input can fail, one for each calculator error.
+// Calculator errors are part of normal operation, as users type invalid
+// input, so they are made without a stack trace, which would cost more
+// than the rest of the failed evaluation.
+public enum ErrorKind {
+  LEXICAL,
+  PARSE,
+  VALUE,
+  NAME,
+  FOREIGN_CALL,
+  RECURSION,
+  DUMP,
+  LOAD;
+
+  // Null if err is not a calculator error.
+  public static ErrorKind of(Throwable err) {
+    if (err instanceof LexicalError) {
+      return LEXICAL;
+    } else if (err instanceof ParseError) {
+      return PARSE;
+    } else if (err instanceof ValueError) {
+      return VALUE;
+    } else if (err instanceof NameError) {
+      return NAME;
+    } else if (err instanceof BadFFI_Call) {
+      return FOREIGN_CALL;
+    } else if (err instanceof StackOverflowError) {
+      return RECURSION;
+    } else if (err instanceof DumpError) {
+      return DUMP;
+    } else if (err instanceof LoadError) {
+      return LOAD;
+    }
+    return null;
+  }
+}
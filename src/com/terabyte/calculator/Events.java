@@ -0,0 +1,45 @@
+package com.terabyte.calculator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight Recorder events for the phases of evaluating input. They are
+// disabled unless a recording enables them, and a disabled event costs
+// next to nothing once compiled.
+//
+// The parser pulls tokens from its Lexer as it goes, so each parse records
+// a Scan event over the same span as its Parse event, counting the tokens
+// it read.
+final class Events {
+  private Events() {}
+
+  @Name("com.terabyte.calculator.Scan")
+  @Label("Scan")
+  @Category("Calculator")
+  @Description("Splitting input into tokens.")
+  static final class Scan extends Event {
+    @Label("Input Length")
+    int length;
+    @Label("Tokens")
+    int tokens;
+  }
+
+  @Name("com.terabyte.calculator.Parse")
+  @Label("Parse")
+  @Category("Calculator")
+  @Description("Parsing and resolving one input.")
+  static final class Parse extends Event {
+    @Label("Input Length")
+    int length;
+  }
+
+  @Name("com.terabyte.calculator.Evaluate")
+  @Label("Evaluate")
+  @Category("Calculator")
+  @Description("Evaluating one parsed input with a TreeInterpreter.")
+  static final class Evaluate extends Event {
+  }
+}
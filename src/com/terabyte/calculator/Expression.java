@@ -4,18 +4,29 @@ import java.util.ArrayList;
 
 public abstract class Expression {
 	public abstract <R> R accept(ExpressionVisitor<R> visitor);
+	public abstract double accept(DoubleExpressionVisitor visitor);
 	
 	public static class Literal extends Expression {
 	  public final Token literal;
+	  public final double value;
 	  
+	  public Literal(Token token, double value) {
+	    this.literal = token;
+	    this.value = value;
+	  }
 	  public Literal(Token token) {
-	    literal = token;
+	    this(token, Double.parseDouble(token.lexeme));
 	  }
 
   	@Override
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 	  	return visitor.visit(this);
   	}	  
+
+  	@Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+	  	return visitor.visit(this);
+  	}
 	}
 	
 	public static class Unary extends Expression {
@@ -31,6 +42,11 @@ public abstract class Expression {
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 		  return visitor.visit(this);
 	  }
+
+	  @Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+		  return visitor.visit(this);
+	  }
 	}
 	
 	public static class Binary extends Expression {
@@ -48,6 +64,11 @@ public abstract class Expression {
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 		  return visitor.visit(this);
 	  }
+
+  	@Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+		  return visitor.visit(this);
+	  }
 	}
 	
 	public static class Group extends Expression {
@@ -61,19 +82,45 @@ public abstract class Expression {
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 		  return visitor.visit(this);
 	  }
+
+    @Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+		  return visitor.visit(this);
+	  }
 	}
 	
 	public static class Variable extends Expression {
 	  public final Token name;
+	  public final int slot;
+	  // Looked up rather than interned, so that names that are never
+	  // defined do not grow the symbol table; -1 until the name exists.
+	  private int symbol = -1;
 	  
-	  public Variable(Token name) {
+	  public Variable(Token name, int slot) {
 	    this.name = name;
+	    this.slot = slot;
+	  }
+	  public Variable(Token name) {
+	    this(name, -1);
+	  }	  public int symbol() {
+	    int id = symbol;
+	    if (id < 0) {
+	      id = Symbols.lookup(name.lexeme);
+	      symbol = id;
+	    }
+	    return id;
 	  }
 
+
 	  @Override
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 		  return visitor.visit(this);
 	  }
+
+	  @Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+		  return visitor.visit(this);
+	  }
 	}
 	
 	public static class Assignment extends Expression {
@@ -89,6 +136,11 @@ public abstract class Expression {
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 		  return visitor.visit(this);
 	  }
+
+	  @Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+		  return visitor.visit(this);
+	  }
 	}
 	
 	public static class Function extends Expression {
@@ -106,6 +158,11 @@ public abstract class Expression {
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 	  	return visitor.visit(this);
   	}
+
+  	@Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+	  	return visitor.visit(this);
+  	}
 	}
 	
 	public static class Call extends Expression {
@@ -121,5 +178,36 @@ public abstract class Expression {
 	  public <R> R accept(ExpressionVisitor<R> visitor) {
 	    return visitor.visit(this);
 	  }
+
+	  @Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+	    return visitor.visit(this);
+	  }
+	}
+	
+	// Binds the value of a shared subexpression to a frame slot while the
+	// body is evaluated. Produced by the optimizer, never by the parser.
+	public static class Let extends Expression {
+	  public final Token name;
+	  public final int slot;
+	  public final Expression value;
+	  public final Expression body;
+	  
+	  public Let(Token name, int slot, Expression value, Expression body) {
+	    this.name = name;
+	    this.slot = slot;
+	    this.value = value;
+	    this.body = body;
+	  }
+	  
+	  @Override
+	  public <R> R accept(ExpressionVisitor<R> visitor) {
+	    return visitor.visit(this);
+	  }
+
+	  @Override
+	  public double accept(DoubleExpressionVisitor visitor) {
+	    return visitor.visit(this);
+	  }
 	}
 }
\ No newline at end of file
@@ -0,0 +1,162 @@
+package com.terabyte.calculator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded map from source text to the trees it parses and optimizes to,
+// evicting the least recently used entries. It is split into segments
+// that each have their own lock, so threads looking up different sources
+// rarely contend.
+public class ExpressionCache {
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  // Entries are immutable; a stale one is replaced rather than updated.
+  // Each source keeps the trees optimized under the last VERSIONS versions
+  // of the functions it was evaluated with, newest first, so calculators
+  // that define different functions can share the cache without
+  // optimizing each other's entries again.
+  public static final class Entry {
+    public static final int VERSIONS = 4;
+
+    public final Expression parsed;
+    public final Expression optimized;
+    public final long version;
+    final Entry older;
+
+    public Entry(Expression parsed, Expression optimized, long version) {
+      this(parsed, optimized, version, null);
+    }
+    // Keeps the trees of older made under other versions.
+    Entry(Expression parsed, Expression optimized, long version, Entry older) {
+      this.parsed = parsed;
+      this.optimized = optimized;
+      this.version = version;
+      this.older = trim(older, version, VERSIONS - 1);
+    }
+    private static Entry trim(Entry entry, long version, int count) {
+      while (entry != null && entry.version == version) {
+        entry = entry.older;
+      }
+      if (entry == null || count == 0) {
+        return null;
+      }
+      Entry rest = trim(entry.older, version, count - 1);
+      return rest == entry.older ? entry : new Entry(entry.parsed, entry.optimized, entry.version, rest);
+    }
+
+    // The entry for version in this one's list, or null.
+    public Entry find(long version) {
+      for (Entry entry = this; entry != null; entry = entry.older) {
+        if (entry.version == version) {
+          return entry;
+        }
+      }
+      return null;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private final class Segment extends LinkedHashMap<String, Entry> {
+    private final int capacity;
+
+    Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      if (size() > capacity) {
+        evictions.increment();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private final Segment[] segments;
+  private final int capacity;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public ExpressionCache() {
+    this(DEFAULT_CAPACITY);
+  }
+  public ExpressionCache(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Cache capacity must be positive.");
+    }
+    int count = 1;
+    while (count < 16 && count * 64 <= capacity) {
+      count *= 2;
+    }
+    this.capacity = capacity;
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      // Spread the remainder so the segments add up to capacity exactly.
+      segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+    }
+  }
+
+  private Segment segment(String source) {
+    int hash = source.hashCode();
+    hash ^= hash >>> 16;
+    return segments[hash & (segments.length - 1)];
+  }
+
+  public Entry get(String source) {
+    Segment segment = segment(source);
+    Entry entry;
+    synchronized (segment) {
+      entry = segment.get(source);
+    }
+    if (entry == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return entry;
+  }
+  public void put(String source, Entry entry) {
+    Segment segment = segment(source);
+    synchronized (segment) {
+      segment.put(source, entry);
+    }
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+  public int capacity() {
+    return capacity;
+  }
+  public long hits() {
+    return hits.sum();
+  }
+  public long misses() {
+    return misses.sum();
+  }
+  public long evictions() {
+    return evictions.sum();
+  }
+  public double hitRate() {
+    long hits = hits(), total = hits + misses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+}
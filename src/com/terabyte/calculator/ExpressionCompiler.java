@@ -0,0 +1,354 @@
+package com.terabyte.calculator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.Expression.*;
+import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
+import com.terabyte.calculator.ForeignFunction.Primitive1;
+import com.terabyte.calculator.ForeignFunction.Primitive2;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+// Every node compiles to a handle of type (double[] globals, double[] frame)double.
+// Globals holds the value of every free variable the expression reads, in
+// the order they were first met, followed by a flag for each that is
+// nonzero if it has no value; the frame holds the arguments and bindings
+// of the user function being evaluated.
+//
+// Undefined variables and functions and calls of the wrong arity fail
+// only when evaluation reaches them, as they do in the tree interpreter,
+// so that the first error met is the one reported.
+public class ExpressionCompiler implements ExpressionVisitor<MethodHandle> {
+  private static final MethodType NODE_TYPE =
+      MethodType.methodType(double.class, double[].class, double[].class);
+  private static final double[] NO_ARGS = new double[0];
+
+  private static final MethodHandle NEGATE;
+  private static final MethodHandle PERCENT;
+  private static final MethodHandle ADD;
+  private static final MethodHandle SUBTRACT;
+  private static final MethodHandle MULTIPLY;
+  private static final MethodHandle DIVIDE;
+  private static final MethodHandle REMAINDER;
+  private static final MethodHandle POWER;
+  private static final MethodHandle READ_SLOT;
+  private static final MethodHandle READ_GLOBAL;
+  private static final MethodHandle UNDEFINED;
+  private static final MethodHandle CANNOT_CALL;
+  private static final MethodHandle BAD_ARITY;
+  private static final MethodHandle BAD_FOREIGN_ARITY;
+  private static final MethodHandle WRITE_SLOT;
+  private static final MethodHandle GROW_FRAME;
+  private static final MethodHandle CALL_FOREIGN;
+  private static final MethodHandle CALL_PRIMITIVE1;
+  private static final MethodHandle CALL_PRIMITIVE2;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    MethodType unary = MethodType.methodType(double.class, double.class);
+    MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+    try {
+      NEGATE = lookup.findStatic(ExpressionCompiler.class, "negate", unary);
+      PERCENT = lookup.findStatic(ExpressionCompiler.class, "percent", unary);
+      ADD = lookup.findStatic(ExpressionCompiler.class, "add", binary);
+      SUBTRACT = lookup.findStatic(ExpressionCompiler.class, "subtract", binary);
+      MULTIPLY = lookup.findStatic(ExpressionCompiler.class, "multiply", binary);
+      DIVIDE = lookup.findStatic(ExpressionCompiler.class, "divide", binary);
+      REMAINDER = lookup.findStatic(ExpressionCompiler.class, "remainder", binary);
+      POWER = lookup.findStatic(Math.class, "pow", binary);
+      READ_SLOT = MethodHandles.arrayElementGetter(double[].class);
+      READ_GLOBAL = lookup.findStatic(ExpressionCompiler.class, "readGlobal",
+          MethodType.methodType(double.class, double[].class, int.class, String.class));
+      UNDEFINED = lookup.findStatic(ExpressionCompiler.class, "undefined",
+          MethodType.methodType(double.class, String.class));
+      CANNOT_CALL = lookup.findStatic(ExpressionCompiler.class, "cannotCall",
+          MethodType.methodType(double.class, String.class));
+      BAD_ARITY = lookup.findStatic(ExpressionCompiler.class, "badArity",
+          MethodType.methodType(double.class));
+      BAD_FOREIGN_ARITY = lookup.findStatic(ExpressionCompiler.class, "badForeignArity",
+          MethodType.methodType(double.class, double[].class));
+      WRITE_SLOT = MethodHandles.arrayElementSetter(double[].class);
+      GROW_FRAME = lookup.findStatic(Arrays.class, "copyOf",
+          MethodType.methodType(double[].class, double[].class, int.class));
+      CALL_FOREIGN = lookup.findStatic(ExpressionCompiler.class, "callForeign",
+          MethodType.methodType(double.class, ForeignFunction.class, TreeInterpreter.class, double[].class));
+      CALL_PRIMITIVE1 = lookup.findVirtual(Primitive1.class, "call", unary);
+      CALL_PRIMITIVE2 = lookup.findVirtual(Primitive2.class, "call", binary);
+    } catch (ReflectiveOperationException err) {
+      throw new AssertionError(err);
+    }
+  }
+
+  private final TreeInterpreter state;
+  private final HashMap<Function, MutableCallSite> functions = new HashMap<>();
+  private final HashMap<String, Integer> globals = new HashMap<>();
+  private int frameSize = 0;
+
+  public ExpressionCompiler(TreeInterpreter state) {
+    this.state = state;
+  }
+
+  public CompiledExpression compile(Expression expr) {
+    if (expr == null) {
+      throw new ValueError("Nothing to compile.");
+    }
+    functions.clear();
+    globals.clear();
+    frameSize = 0;
+    MethodHandle handle = scope(expr, 0);
+    MutableCallSite.syncAll(functions.values().toArray(new MutableCallSite[0]));
+    String[] names = new String[globals.size()];
+    for (var global : globals.entrySet()) {
+      names[global.getValue()] = global.getKey();
+    }
+    return new CompiledExpression(handle, state.getEnvironment(), names);
+  }
+
+  // Compiles the root of a scope, growing the incoming frame when bindings
+  // need slots beyond its arguments.
+  private MethodHandle scope(Expression body, int arity) {
+    int enclosing = frameSize;
+    frameSize = arity;
+    try {
+      MethodHandle handle = body.accept(this);
+      if (frameSize > arity) {
+        MethodHandle grow = MethodHandles.insertArguments(GROW_FRAME, 1, frameSize);
+        handle = MethodHandles.filterArguments(handle, 1, grow);
+      }
+      return handle;
+    } finally {
+      frameSize = enclosing;
+    }
+  }
+
+  private static double negate(double x) {
+    return -x;
+  }
+  private static double percent(double x) {
+    return x / 100.0;
+  }
+  private static double add(double left, double right) {
+    return left + right;
+  }
+  private static double subtract(double left, double right) {
+    return left - right;
+  }
+  private static double multiply(double left, double right) {
+    return left * right;
+  }
+  private static double divide(double left, double right) {
+    if (right == 0) {
+      throw new ValueError("Division by zero is undefined.");
+    }
+    return left / right;
+  }
+  private static double remainder(double left, double right) {
+    if (right == 0) {
+      throw new ValueError("Division by zero is undefined.");
+    }
+    return left % right;
+  }
+  private static double readGlobal(double[] globals, int index, String name) {
+    if (globals[(globals.length >> 1) + index] != 0) {
+      throw new NameError(name);
+    }
+    return globals[index];
+  }
+  private static double undefined(String name) {
+    throw new NameError(name);
+  }
+  private static double cannotCall(String name) {
+    throw new ValueError(String.format("Cannot call '%s'", name));
+  }
+  private static double badArity() {
+    throw new ValueError("Invalid arity for function call.");
+  }
+  private static double badForeignArity(double[] args) {
+    throw new BadFFI_Call("Invalid arity for function call.");
+  }
+  // A node that fails as soon as it is reached.
+  private static MethodHandle failure(MethodHandle thrower, Object... args) {
+    return MethodHandles.dropArguments(MethodHandles.insertArguments(thrower, 0, args), 0, NODE_TYPE.parameterList());
+  }
+
+  private static double callForeign(ForeignFunction fn, TreeInterpreter state, double[] args) {
+    ArrayList<Double> values = new ArrayList<>(args.length);
+    for (double arg : args) {
+      values.add(arg);
+    }
+    Double n;
+    try {
+      n = fn.execute(state, values);
+    } catch (Throwable err) {
+      throw new BadFFI_Call("Something went wrong.");
+    }
+    if (n == null) {
+      throw new ValueError("Value cannot be null.");
+    }
+    return n;
+  }
+
+  // Feeds (globals, frame) into every argument of target, which takes the
+  // globals first when keepGlobals is set, followed by args.size() doubles.
+  private static MethodHandle spread(MethodHandle target, boolean keepGlobals, ArrayList<MethodHandle> args) {
+    int offset = keepGlobals ? 1 : 0;
+    MethodHandle filtered = target;
+    for (int i = args.size() - 1; i >= 0; i--) {
+      filtered = MethodHandles.collectArguments(filtered, offset + i, args.get(i));
+    }
+    int[] reorder = new int[offset + 2 * args.size()];
+    for (int i = 0; i < args.size(); i++) {
+      reorder[offset + 2 * i] = 0;
+      reorder[offset + 2 * i + 1] = 1;
+    }
+    return MethodHandles.permuteArguments(filtered, NODE_TYPE, reorder);
+  }
+  private static MethodHandle apply(MethodHandle op, MethodHandle... operands) {
+    ArrayList<MethodHandle> args = new ArrayList<>();
+    for (MethodHandle operand : operands) {
+      args.add(operand);
+    }
+    return spread(op, false, args);
+  }
+
+  @Override
+  public MethodHandle visit(Literal expr) {
+    return MethodHandles.dropArguments(MethodHandles.constant(double.class, expr.value), 0, NODE_TYPE.parameterList());
+  }
+
+  @Override
+  public MethodHandle visit(Unary expr) {
+    MethodHandle operand = expr.operand.accept(this);
+    switch (expr.operator.type) {
+      case MINUS:
+        return MethodHandles.filterReturnValue(operand, NEGATE);
+      case MODULO:
+        return MethodHandles.filterReturnValue(operand, PERCENT);
+      default: throw new AssertionError();
+    }
+  }
+
+  @Override
+  public MethodHandle visit(Binary expr) {
+    MethodHandle left = expr.left.accept(this);
+    MethodHandle right = expr.right.accept(this);
+    switch (expr.operator.type) {
+      case PLUS: return apply(ADD, left, right);
+      case MINUS: return apply(SUBTRACT, left, right);
+      case ASTERISK: return apply(MULTIPLY, left, right);
+      case SLASH: return apply(DIVIDE, left, right);
+      case MOD: return apply(REMAINDER, left, right);
+      case CARET: return apply(POWER, left, right);
+      default: throw new AssertionError();
+    }
+  }
+
+  @Override
+  public MethodHandle visit(Group expr) {
+    return expr.expression.accept(this);
+  }
+
+  @Override
+  public MethodHandle visit(Variable expr) {
+    if (expr.slot >= 0) {
+      MethodHandle read = MethodHandles.insertArguments(READ_SLOT, 1, expr.slot);
+      return MethodHandles.dropArguments(read, 0, double[].class);
+    }
+    Integer index = globals.get(expr.name.lexeme);
+    if (index == null) {
+      index = globals.size();
+      globals.put(expr.name.lexeme, index);
+    }
+    MethodHandle read = MethodHandles.insertArguments(READ_GLOBAL, 1, index, expr.name.lexeme);
+    return MethodHandles.dropArguments(read, 1, double[].class);
+  }
+
+  @Override
+  public MethodHandle visit(Assignment expr) {
+    throw new ValueError("Only expressions can be compiled.");
+  }
+
+  @Override
+  public MethodHandle visit(Function expr) {
+    throw new ValueError("Only expressions can be compiled.");
+  }
+
+  // Functions are looked up, and user functions' arity checked, before
+  // the arguments are evaluated; foreign functions check theirs after.
+  @Override
+  public MethodHandle visit(Call expr) {
+    Object func;
+    try {
+      func = state.getEnvironment().getFunction(expr.name.lexeme);
+    } catch (NameError err) {
+      return failure(UNDEFINED, expr.name.lexeme);
+    }
+    if (func instanceof Function && ((Function) func).params.size() != expr.args.size()) {
+      return failure(BAD_ARITY);
+    } else if (!(func instanceof Function) && !(func instanceof ForeignFunction)) {
+      return failure(CANNOT_CALL, expr.name.lexeme);
+    }
+    ArrayList<MethodHandle> args = new ArrayList<>();
+    for (Expression arg : expr.args) {
+      args.add(arg.accept(this));
+    }
+    if (func instanceof Function) {
+      MethodHandle body = compileFunction((Function) func);
+      if (args.isEmpty()) {
+        return MethodHandles.dropArguments(MethodHandles.insertArguments(body, 1, (Object) NO_ARGS), 1, double[].class);
+      }
+      MethodHandle frame = MethodHandles.identity(double[].class).asCollector(double[].class, args.size());
+      return spread(MethodHandles.collectArguments(body, 1, frame), true, args);
+    }
+    ForeignFunction fn = (ForeignFunction) func;
+    MethodHandle call;
+    try {
+      fn.arityCheck(args.size());
+      // Primitives are bound directly, so the JIT can inline them.
+      if (fn instanceof Primitive1) {
+        return apply(CALL_PRIMITIVE1.bindTo(fn), args.get(0));
+      } else if (fn instanceof Primitive2) {
+        return apply(CALL_PRIMITIVE2.bindTo(fn), args.get(0), args.get(1));
+      }
+      call = MethodHandles.insertArguments(CALL_FOREIGN, 0, fn, state);
+    } catch (BadFFI_Call err) {
+      call = BAD_FOREIGN_ARITY;
+    }
+    if (args.isEmpty()) {
+      return MethodHandles.dropArguments(MethodHandles.insertArguments(call, 0, (Object) NO_ARGS), 0, NODE_TYPE.parameterList());
+    }
+    return spread(call.asCollector(double[].class, args.size()), false, args);
+  }
+
+  // Functions are bound when first called, through a call site so that
+  // (necessarily unbounded) recursion links back to the body being compiled.
+  private MethodHandle compileFunction(Function fn) {
+    MutableCallSite site = functions.get(fn);
+    if (site == null) {
+      site = new MutableCallSite(NODE_TYPE);
+      functions.put(fn, site);
+      try {
+        site.setTarget(scope(fn.expression, fn.params.size()));
+      } catch (RuntimeException err) {
+        functions.remove(fn);
+        throw err;
+      }
+    }
+    return site.dynamicInvoker();
+  }
+
+  @Override
+  public MethodHandle visit(Let expr) {
+    frameSize = Math.max(frameSize, expr.slot + 1);
+    MethodHandle value = expr.value.accept(this);
+    MethodHandle store = MethodHandles.collectArguments(
+        MethodHandles.insertArguments(WRITE_SLOT, 1, expr.slot), 1, value);
+    store = MethodHandles.permuteArguments(store, NODE_TYPE.changeReturnType(void.class), 1, 0, 1);
+    return MethodHandles.foldArguments(expr.body.accept(this), store);
+  }
+}
@@ -73,4 +73,11 @@ public class ExpressionPrinter implements ExpressionVisitor<String> {
 	  builder.append("))");
 	  return builder.toString();
 	}
+
+	@Override
+	public String visit(Let expr) {
+	  String value = expr.value.accept(this);
+	  String body = expr.body.accept(this);
+	  return String.format("(let %s = %s in %s)", expr.name.lexeme, value, body);
+	}
 }
\ No newline at end of file
@@ -9,4 +9,5 @@ public interface ExpressionVisitor<R> {
 	R visit(Expression.Assignment expr);
 	R visit(Expression.Function expr);
 	R visit(Expression.Call expr);
+	R visit(Expression.Let expr);
 }
\ No newline at end of file
@@ -8,20 +8,87 @@ public abstract class ForeignFunction {
 	  public final String what;
 	  
 	  public BadFFI_Call(String what) {
-	    super("Bad FFI Call");
+	    super("Bad FFI Call", null, false, false);
 	    this.what = what;
 	  }
 	}
 	
 	private final int arity;
+	private final boolean pure;
 	
 	public void arityCheck(int arity) {
 	  if (arity != this.arity) {
 	    throw new BadFFI_Call("Invalid arity for function call.");
 	  }
 	}
-	public ForeignFunction(int arity) {
+	// Pure functions depend only on their arguments and have no side effects,
+	// so calls to them with constant arguments may be evaluated ahead of time.
+	public boolean isPure() {
+	  return pure;
+	}
+	public ForeignFunction(int arity, boolean pure) {
 	  this.arity = arity;
+	  this.pure = pure;
+	}
+	public ForeignFunction(int arity) {
+	  this(arity, false);
 	}
 	public abstract Double execute(TreeInterpreter state, ArrayList<Double> args);
+	
+	// Functions of one or two doubles that need no interpreter state. The
+	// engines call them directly, without boxing or collecting arguments.
+	public interface Arity1 {
+	  double apply(double x);
+	}
+	public interface Arity2 {
+	  double apply(double x, double y);
+	}
+	public static ForeignFunction of(Arity1 fn, boolean pure) {
+	  return new Primitive1(fn, pure);
+	}
+	public static ForeignFunction of(Arity2 fn, boolean pure) {
+	  return new Primitive2(fn, pure);
+	}
+	
+	// An exception thrown by fn is reported like that of any foreign
+	// function; the try costs nothing when nothing is thrown.
+	public static final class Primitive1 extends ForeignFunction {
+	  public final Arity1 fn;
+	  
+	  private Primitive1(Arity1 fn, boolean pure) {
+	    super(1, pure);
+	    this.fn = fn;
+	  }
+	  public double call(double x) {
+	    try {
+	      return fn.apply(x);
+	    } catch (RuntimeException err) {
+	      throw new BadFFI_Call("Something went wrong.");
+	    }
+	  }
+	  @Override
+	  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
+	    return fn.apply(args.get(0));
+	  }
+	}
+	
+	public static final class Primitive2 extends ForeignFunction {
+	  public final Arity2 fn;
+	  
+	  private Primitive2(Arity2 fn, boolean pure) {
+	    super(2, pure);
+	    this.fn = fn;
+	  }
+	  public double call(double x, double y) {
+	    try {
+	      return fn.apply(x, y);
+	    } catch (RuntimeException err) {
+	      throw new BadFFI_Call("Something went wrong.");
+	    }
+	  }
+	  @Override
+	  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
+	    return fn.apply(args.get(0), args.get(1));
+	  }
+	}
 }
\ No newline at end of file
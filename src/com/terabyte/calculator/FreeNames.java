@@ -0,0 +1,80 @@
+package com.terabyte.calculator;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.Expression.*;
+
+// Finds the globals an expression reads: its free variables and those of
+// the user functions it calls, directly or not, each body visited once.
+// Parameters and bindings were given slots by the Resolver and are not
+// free. Calls are looked up among the globals as they are now.
+final class FreeNames {
+  private final Environment globals;
+  private final boolean calls;
+  private final Set<Integer> names;
+  private final Set<Function> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+  private boolean pure = true;
+
+  private FreeNames(Environment globals, boolean calls, Set<Integer> names) {
+    this.globals = globals;
+    this.calls = calls;
+    this.names = names;
+  }
+
+  // Adds the symbols of the names expr reads to names, along with those of
+  // the functions it calls when calls is set. Returns whether every call
+  // is to a user function or a pure built-in, so that the value of expr
+  // depends on nothing but the names collected.
+  static boolean collect(Expression expr, Environment globals, boolean calls, Set<Integer> names) {
+    FreeNames free = new FreeNames(globals, calls, names);
+    free.visit(expr);
+    return free.pure;
+  }
+
+  private void visit(Expression expr) {
+    if (expr instanceof Variable) {
+      Variable var = (Variable) expr;
+      if (var.slot < 0) {
+        names.add(Symbols.intern(var.name.lexeme));
+      }
+    } else if (expr instanceof Group) {
+      visit(((Group) expr).expression);
+    } else if (expr instanceof Unary) {
+      visit(((Unary) expr).operand);
+    } else if (expr instanceof Binary) {
+      Binary binary = (Binary) expr;
+      visit(binary.left);
+      visit(binary.right);
+    } else if (expr instanceof Let) {
+      Let let = (Let) expr;
+      visit(let.value);
+      visit(let.body);
+    } else if (expr instanceof Call) {
+      Call call = (Call) expr;
+      if (calls) {
+        names.add(Symbols.intern(call.name.lexeme));
+      }
+      for (Expression arg : call.args) {
+        visit(arg);
+      }
+      Object callee;
+      try {
+        callee = globals.getFunction(call.name.lexeme);
+      } catch (NameError err) {
+        callee = null;
+      }
+      if (callee instanceof Function) {
+        if (visited.add((Function) callee)) {
+          visit(((Function) callee).expression);
+        }
+      } else if (!(callee instanceof ForeignFunction && ((ForeignFunction) callee).isPure())) {
+        pure = false;
+      }
+    } else if (!(expr instanceof Literal)) {
+      // Statements are not evaluated for their value.
+      pure = false;
+    }
+  }
+}
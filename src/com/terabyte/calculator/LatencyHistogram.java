@@ -0,0 +1,95 @@
+package com.terabyte.calculator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram of durations in nanoseconds, recorded without locks from any
+// number of threads. Buckets are laid out as in HdrHistogram: values below
+// 2^BITS have a bucket each, and every power of two above that range is
+// split into 2^BITS buckets, so any value is known to within 1/2^BITS of
+// itself, about 3%, across the whole range of a long.
+//
+// Reads are not atomic with respect to recording; a value recorded while
+// reading may be missed by some of the figures and counted by others.
+public final class LatencyHistogram {
+  private static final int BITS = 5;
+  private static final int SUB = 1 << BITS;
+  private static final int BUCKETS = (64 - BITS) * SUB;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  private static int bucket(long value) {
+    if (value < SUB) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    return (exponent - BITS + 1) * SUB + (int) ((value >>> (exponent - BITS)) & (SUB - 1));
+  }
+  // The middle of the values that fall in a bucket.
+  private static long middle(int bucket) {
+    if (bucket < SUB) {
+      return bucket;
+    }
+    int shift = bucket / SUB - 1;
+    long low = (long) (SUB + bucket % SUB) << shift;
+    return low + (1L << shift) / 2;
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucket(nanos));
+    count.increment();
+    total.add(nanos);
+    if (nanos > max.get()) {
+      max.accumulateAndGet(nanos, Math::max);
+    }
+  }
+
+  public long count() {
+    return count.sum();
+  }
+  public long max() {
+    return max.get();
+  }
+  public double mean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) total.sum() / n;
+  }
+  // The value below which the given percentage of recorded values fall,
+  // or 0 if there are none.
+  public long percentile(double percent) {
+    long n = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(middle(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    total.reset();
+    max.set(0);
+  }
+}
@@ -0,0 +1,239 @@
+package com.terabyte.calculator;
+
+import static com.terabyte.calculator.Token.Type.*;
+import com.terabyte.calculator.Scanner.LexicalError;
+
+// Streaming counterpart of Scanner over any CharSequence, such as a
+// String, StringBuilder or CharBuffer. It holds one token at a time: after
+// next() the token is described by type(), start() and length(), and a
+// number's value is already parsed. Nothing is copied or allocated unless
+// token() is asked for a token that has no shared instance.
+public class Lexer {
+  // More names than this are forgotten at the next reset, so a long-lived
+  // lexer does not keep every name it ever saw.
+  private static final int MAX_NAMES = 1024;
+
+  private CharSequence src;
+  private int end;
+  private int start;
+  private int current;
+  private Token.Type type;
+  private double number;
+
+  // Identifier tokens seen recently, found by hashing the source characters
+  // so that a repeated name costs no allocation.
+  private Token[] names = new Token[64];
+  private int nameCount = 0;
+
+  public Lexer reset(CharSequence src) {
+    this.src = src;
+    this.end = src.length();
+    start = 0;
+    current = 0;
+    type = null;
+    if (nameCount > MAX_NAMES) {
+      names = new Token[64];
+      nameCount = 0;
+    }
+    return this;
+  }
+
+  public Token.Type type() {
+    return type;
+  }
+  public int start() {
+    return start;
+  }
+  public int length() {
+    return current - start;
+  }
+  public double number() {
+    return number;
+  }
+  public CharSequence source() {
+    return src;
+  }
+  public String text() {
+    return src.subSequence(start, current).toString();
+  }
+
+  // Moves to the next token; returns false at the end of the input.
+  public boolean next() {
+    while (current < end) {
+      char ch = src.charAt(current);
+      if (ch != ' ' && ch != '\n' && ch != '\t') {
+        break;
+      }
+      current++;
+    }
+    start = current;
+    if (current >= end) {
+      type = null;
+      return false;
+    }
+    char ch = src.charAt(current++);
+    switch (ch) {
+      case '+': type = PLUS; break;
+      case '-': type = MINUS; break;
+      case '*': type = ASTERISK; break;
+      case '/': type = SLASH; break;
+      case '%': type = MODULO; break;
+      case '^': type = CARET; break;
+      case '(': type = LEFT_PAREN; break;
+      case ')': type = RIGHT_PAREN; break;
+      case '=': type = EQUAL; break;
+      case ',': type = COMMA; break;
+      default:
+        if (Character.isLetter(ch) || ch == '_') {
+          scanIdentifier();
+        } else if (isDigit(ch)) {
+          scanNumber();
+        } else {
+          error("Invalid character.");
+        }
+    }
+    return true;
+  }
+
+  // The current token as a Token: operators and names are shared between
+  // calls, numbers get a new token holding their text.
+  public Token token() {
+    switch (type) {
+      case NUMBER:
+        return new Token(NUMBER, text());
+      case IDENTIFIER:
+        return name();
+      default:
+        return Token.of(type);
+    }
+  }
+
+  private void error(String msg) {
+    throw new LexicalError(text(), msg, start);
+  }
+
+  private char peek() {
+    return current < end ? src.charAt(current) : '\0';
+  }
+
+  private void scanIdentifier() {
+    while (Character.isLetterOrDigit(peek()) || peek() == '_') {
+      current++;
+    }
+    type = current - start == 3 && src.charAt(start) == 'm' && src.charAt(start + 1) == 'o'
+        && src.charAt(start + 2) == 'd' ? MOD : IDENTIFIER;
+  }
+
+  private Token name() {
+    int hash = 0;
+    for (int i = start; i < current; i++) {
+      hash = 31 * hash + src.charAt(i);
+    }
+    int mask = names.length - 1;
+    for (int i = (hash ^ hash >>> 16) & mask; ; i = (i + 1) & mask) {
+      Token token = names[i];
+      if (token == null) {
+        token = new Token(IDENTIFIER, text());
+        names[i] = token;
+        if (++nameCount * 2 > names.length) {
+          rehash();
+        }
+        return token;
+      }
+      if (matches(token.lexeme)) {
+        return token;
+      }
+    }
+  }
+  private boolean matches(String lexeme) {
+    if (lexeme.length() != current - start) {
+      return false;
+    }
+    for (int i = 0; i < lexeme.length(); i++) {
+      if (lexeme.charAt(i) != src.charAt(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+  private void rehash() {
+    Token[] old = names;
+    names = new Token[old.length * 2];
+    int mask = names.length - 1;
+    for (Token token : old) {
+      if (token != null) {
+        int hash = token.lexeme.hashCode();
+        int i = (hash ^ hash >>> 16) & mask;
+        while (names[i] != null) {
+          i = (i + 1) & mask;
+        }
+        names[i] = token;
+      }
+    }
+  }
+
+  private static boolean isDigit(char ch) {
+    return ch >= '0' && ch <= '9';
+  }
+
+  // Accepts the same literals as Scanner: ASCII digits, an optional fraction
+  // and an optional exponent. The first 19 significant digits are
+  // accumulated as they are read, and DoubleParser rounds them; only when it
+  // cannot decide is the text handed to Double.parseDouble.
+  private void scanNumber() {
+    long digits = 0;
+    int count = 0;
+    int scale = 0;
+    boolean truncated = false;
+    current--;
+    while (isDigit(peek())) {
+      char ch = src.charAt(current++);
+      if (count < 19) {
+        digits = digits * 10 + (ch - '0');
+        count += digits == 0 ? 0 : 1;
+      } else {
+        scale++;
+        truncated |= ch != '0';
+      }
+    }
+    if (peek() == '.') {
+      current++;
+      while (isDigit(peek())) {
+        char ch = src.charAt(current++);
+        if (count < 19) {
+          digits = digits * 10 + (ch - '0');
+          count += digits == 0 ? 0 : 1;
+          scale--;
+        } else {
+          truncated |= ch != '0';
+        }
+      }
+    }
+    int exponent = 0;
+    if (Character.toUpperCase(peek()) == 'E') {
+      current++;
+      boolean negative = false;
+      if (peek() == '+' || peek() == '-') {
+        negative = src.charAt(current++) == '-';
+      }
+      if (!isDigit(peek())) {
+        if (current < end) {
+          current++;
+        }
+        error("Ill-formed number literal.");
+      }
+      while (isDigit(peek())) {
+        char ch = src.charAt(current++);
+        if (exponent < 100000) {
+          exponent = exponent * 10 + (ch - '0');
+        }
+      }
+      exponent = negative ? -exponent : exponent;
+    }
+    type = NUMBER;
+    number = DoubleParser.toDouble(digits, scale + exponent, truncated);
+    if (Double.isNaN(number)) {
+      number = Double.parseDouble(text());
+    }
+  }
+}
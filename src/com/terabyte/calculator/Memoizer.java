@@ -0,0 +1,130 @@
+package com.terabyte.calculator;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import com.terabyte.calculator.Environment.NameError;
+import com.terabyte.calculator.Expression.*;
+
+// Remembers the results of user functions whose bodies only do arithmetic
+// on names and call pure built-ins or other such functions. A result is
+// keyed on the arguments and on the values of every global the body (or a
+// function it calls) reads.
+//
+// Tables are thrown away whenever the set of defined functions changes.
+public class Memoizer {
+  public static final int ENTRIES = 1024;
+
+  // A direct-mapped table: a new key takes over the entry it hashes to.
+  static final class Table {
+    private final int arity;
+    private final int[] symbols;
+    private final int width;
+    private final long[] keys;
+    private final double[] results;
+    private final boolean[] filled = new boolean[ENTRIES];
+
+    Table(int arity, int[] symbols) {
+      this.arity = arity;
+      this.symbols = symbols;
+      this.width = arity + symbols.length;
+      this.keys = new long[ENTRIES * width];
+      this.results = new double[ENTRIES];
+    }
+
+    // The arguments are frame[fp..fp + arity).
+    Double call(ExpressionVisitor<Double> interp, Expression body, double[] frame, int fp, Environment globals) {
+      int index;
+      try {
+        index = index(frame, fp, globals);
+      } catch (NameError err) {
+        return body.accept(interp);
+      }
+      if (filled[index] && matches(index, frame, fp, globals)) {
+        return results[index];
+      }
+      Double n = body.accept(interp);
+      if (n != null) {
+        int base = index * width;
+        for (int i = 0; i < width; i++) {
+          keys[base + i] = Double.doubleToLongBits(key(i, frame, fp, globals));
+        }
+        results[index] = n;
+        filled[index] = true;
+      }
+      return n;
+    }
+
+    private double key(int i, double[] frame, int fp, Environment globals) {
+      return i < arity ? frame[fp + i] : globals.getDouble(symbols[i - arity]);
+    }
+    private int index(double[] frame, int fp, Environment globals) {
+      long hash = 0;
+      for (int i = 0; i < width; i++) {
+        hash = (hash + Double.doubleToLongBits(key(i, frame, fp, globals))) * 0x9E3779B97F4A7C15L;
+      }
+      return (int) (hash >>> 32) & (ENTRIES - 1);
+    }
+    private boolean matches(int index, double[] frame, int fp, Environment globals) {
+      int base = index * width;
+      for (int i = 0; i < width; i++) {
+        if (keys[base + i] != Double.doubleToLongBits(key(i, frame, fp, globals))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean reads(int symbol) {
+      for (int read : symbols) {
+        if (read == symbol) {
+          return true;
+        }
+      }
+      return false;
+    }
+    void clear() {
+      Arrays.fill(filled, false);
+    }
+  }
+
+  // Stands in for functions that cannot be memoized.
+  private static final Table NONE = new Table(0, new int[0]);
+
+  private final IdentityHashMap<Function, Table> tables = new IdentityHashMap<>();
+  private long version;
+
+  // Returns null when fn has to be evaluated as usual.
+  Table tableFor(Function fn, Environment globals) {
+    if (version != globals.getVersion()) {
+      tables.clear();
+      version = globals.getVersion();
+    }
+    Table table = tables.get(fn);
+    if (table == null) {
+      LinkedHashSet<Integer> reads = new LinkedHashSet<>();
+      if (FreeNames.collect(fn.expression, globals, false, reads)) {
+        int[] symbols = new int[reads.size()];
+        int i = 0;
+        for (int symbol : reads) {
+          symbols[i++] = symbol;
+        }
+        table = new Table(fn.params.size(), symbols);
+      } else {
+        table = NONE;
+      }
+      tables.put(fn, table);
+    }
+    return table == NONE ? null : table;
+  }
+
+  // A global was assigned: results that depended on it are dropped.
+  void assigned(String name) {
+    int symbol = Symbols.intern(name);
+    for (Table table : tables.values()) {
+      if (table != NONE && table.reads(symbol)) {
+        table.clear();
+      }
+    }
+  }
+}
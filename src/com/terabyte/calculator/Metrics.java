@@ -0,0 +1,10 @@
+package com.terabyte.calculator;
+
+// Told about every input a Calculator evaluates, with how long it took.
+// One instance may be shared by calculators on several threads, so
+// implementations must be thread-safe, and should be quick: they run on
+// the evaluating thread.
+public interface Metrics {
+  void evaluated(long nanos);
+  void failed(ErrorKind kind, long nanos);
+}
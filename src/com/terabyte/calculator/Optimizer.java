@@ -0,0 +1,180 @@
+package com.terabyte.calculator;
+
+import static com.terabyte.calculator.Token.Type.*;
+import java.util.ArrayList;
+import com.terabyte.calculator.Expression.*;
+
+// Folds constant subtrees into literals and rewrites costly operations
+// into cheaper equivalent ones before evaluation, then shares repeated
+// subexpressions. Variables are never folded since any of them, pi and e
+// included, may be reassigned. Rewrites that depend on what a call refers
+// to are only done outside function bodies, whose calls are bound late
+// and may see a different definition.
+public class Optimizer implements ExpressionVisitor<Expression> {
+  private final TreeInterpreter state;
+  private final DoubleInterpreter folder;
+  private final SubexpressionEliminator eliminator;
+  private boolean inFunction = false;
+
+  public Optimizer(TreeInterpreter state) {
+    this.state = state;
+    this.folder = new DoubleInterpreter(state);
+    this.eliminator = new SubexpressionEliminator(state);
+  }
+
+  public Expression optimize(Expression expr) {
+    if (expr == null) {
+      return null;
+    }
+    return eliminator.eliminate(expr.accept(this));
+  }
+
+  // Errors such as a division by zero are left in place to be raised when
+  // the expression is evaluated.
+  private Expression fold(Expression expr) {
+    double value;
+    try {
+      value = expr.accept(folder);
+    } catch (RuntimeException err) {
+      return expr;
+    }
+    return literal(value);
+  }
+  private static Literal literal(double value) {
+    return new Literal(new Token(NUMBER, Double.toString(value)), value);
+  }
+
+  @Override
+  public Expression visit(Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expression visit(Unary expr) {
+    Expression operand = expr.operand.accept(this);
+    Expression unary = operand == expr.operand ? expr : new Unary(expr.operator, operand);
+    if (operand instanceof Literal) {
+      return fold(unary);
+    }
+    return unary;
+  }
+
+  @Override
+  public Expression visit(Binary expr) {
+    Expression left = expr.left.accept(this);
+    Expression right = expr.right.accept(this);
+    Binary binary = left == expr.left && right == expr.right
+        ? expr : new Binary(left, expr.operator, right);
+    if (left instanceof Literal && right instanceof Literal) {
+      return fold(binary);
+    }
+    if (right instanceof Literal) {
+      return reduce(binary, left, ((Literal) right).value);
+    }
+    if (left instanceof Literal && expr.operator.type == ASTERISK && ((Literal) left).value == 1) {
+      return right;
+    }
+    return binary;
+  }
+
+  // Only rewrites that give bit-identical results for every operand are
+  // done, apart from small powers, which may differ from Math.pow in the
+  // last place. x+0 is kept since it turns -0 into 0, and x^0.5 since
+  // sqrt differs for -0 and -Infinity.
+  private Expression reduce(Binary binary, Expression left, double c) {
+    switch (binary.operator.type) {
+      case ASTERISK:
+        return c == 1 ? left : binary;
+      case MINUS:
+        // x - -0 is x + 0, and is kept for the same reason.
+        return Double.doubleToRawLongBits(c) == 0 ? left : binary;
+      case SLASH:
+        if (c == 1) {
+          return left;
+        }
+        // Dividing by a power of two is exactly multiplying by its inverse.
+        if (Math.abs(c) == Math.scalb(1.0, Math.getExponent(c)) && !Double.isInfinite(1 / c)) {
+          return new Binary(left, new Token(ASTERISK, "*"), literal(1 / c));
+        }
+        return binary;
+      case CARET:
+        if (c == 1) {
+          return left;
+        }
+        if ((c == 2 || c == 3 || c == 4) && eliminator.isPure(left)) {
+          Expression square = new Binary(left, new Token(ASTERISK, "*"), left);
+          if (c == 2) {
+            return square;
+          } else if (c == 3) {
+            return new Binary(square, new Token(ASTERISK, "*"), left);
+          }
+          return new Binary(square, new Token(ASTERISK, "*"), square);
+        }
+        return binary;
+      default:
+        return binary;
+    }
+  }
+
+  @Override
+  public Expression visit(Group expr) {
+    return expr.expression.accept(this);
+  }
+
+  @Override
+  public Expression visit(Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Expression visit(Assignment expr) {
+    Expression value = expr.value.accept(this);
+    if (value == expr.value) {
+      return expr;
+    }
+    return new Assignment(expr.target, value);
+  }
+
+  @Override
+  public Expression visit(Function expr) {
+    boolean enclosing = inFunction;
+    inFunction = true;
+    try {
+      Expression body = expr.expression.accept(this);
+      if (body == expr.expression) {
+        return expr;
+      }
+      return new Function(expr.name, expr.params, body);
+    } finally {
+      inFunction = enclosing;
+    }
+  }
+
+  @Override
+  public Expression visit(Call expr) {
+    ArrayList<Expression> args = new ArrayList<>(expr.args.size());
+    boolean changed = false;
+    boolean constant = true;
+    for (Expression arg : expr.args) {
+      Expression optimized = arg.accept(this);
+      changed |= optimized != arg;
+      constant &= optimized instanceof Literal;
+      args.add(optimized);
+    }
+    Expression call = changed ? new Call(expr.name, args) : expr;
+    if (constant && !inFunction && state.isPureForeign(expr.name.lexeme)) {
+      return fold(call);
+    }
+    return call;
+  }
+
+  @Override
+  public Expression visit(Let expr) {
+    Expression value = expr.value.accept(this);
+    Expression body = expr.body.accept(this);
+    if (value == expr.value && body == expr.body) {
+      return expr;
+    }
+    return new Let(expr.name, expr.slot, value, body);
+  }
+}
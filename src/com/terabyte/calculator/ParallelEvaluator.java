@@ -0,0 +1,153 @@
+package com.terabyte.calculator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Splits a batch over the threads of a ForkJoinPool. The expression is
+// parsed once and shared. Each call has its own pool of BatchEvaluators,
+// which leaf tasks take and give back, so no more are made than tasks run
+// at once and none outlives the call. The session must not be modified
+// while an evaluation is running.
+//
+// Reductions split the rows at fixed boundaries and combine compensated
+// partial sums in a fixed order, so their result does not depend on the
+// number of threads or on scheduling.
+public class ParallelEvaluator {
+  private static final int LEAF_ROWS = 16 * BatchEvaluator.BLOCK_SIZE;
+
+  private final TreeInterpreter state;
+  private final ForkJoinPool pool;
+
+  public ParallelEvaluator(TreeInterpreter state, ForkJoinPool pool) {
+    this.state = state;
+    this.pool = pool;
+  }
+  public ParallelEvaluator(TreeInterpreter state) {
+    this(state, ForkJoinPool.commonPool());
+  }
+
+  public double[] evaluate(Expression expr, Map<String, double[]> columns) {
+    double[] out = new double[BatchEvaluator.rows(columns)];
+    pool.invoke(new Fill(new Evaluators(), expr, columns, 0, out.length, out));
+    return out;
+  }
+
+  public double sum(Expression expr, Map<String, double[]> columns) {
+    double[] partial = pool.invoke(new Sum(new Evaluators(), expr, columns, 0, BatchEvaluator.rows(columns)));
+    return partial[0] + partial[1];
+  }
+
+  public double mean(Expression expr, Map<String, double[]> columns) {
+    int rows = BatchEvaluator.rows(columns);
+    if (rows == 0) {
+      return Double.NaN;
+    }
+    double[] partial = pool.invoke(new Sum(new Evaluators(), expr, columns, 0, rows));
+    return (partial[0] + partial[1]) / rows;
+  }
+
+  // The evaluators of one call that no task is using.
+  private final class Evaluators {
+    private final ConcurrentLinkedQueue<BatchEvaluator> idle = new ConcurrentLinkedQueue<>();
+
+    void evaluate(Expression expr, Map<String, double[]> columns, int from, int to, double[] out, int at) {
+      BatchEvaluator evaluator = idle.poll();
+      if (evaluator == null) {
+        evaluator = new BatchEvaluator(state);
+      }
+      try {
+        evaluator.evaluate(expr, columns, from, to, out, at);
+      } finally {
+        idle.offer(evaluator);
+      }
+    }
+  }
+
+  private static int split(int from, int to) {
+    return from + Math.max(1, (to - from) / LEAF_ROWS / 2) * LEAF_ROWS;
+  }
+
+  @SuppressWarnings("serial")
+  private class Fill extends RecursiveAction {
+    private final Evaluators evaluators;
+    private final Expression expr;
+    private final Map<String, double[]> columns;
+    private final int from;
+    private final int to;
+    private final double[] out;
+
+    Fill(Evaluators evaluators, Expression expr, Map<String, double[]> columns, int from, int to, double[] out) {
+      this.evaluators = evaluators;
+      this.expr = expr;
+      this.columns = columns;
+      this.from = from;
+      this.to = to;
+      this.out = out;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= LEAF_ROWS) {
+        evaluators.evaluate(expr, columns, from, to, out, from);
+        return;
+      }
+      int mid = split(from, to);
+      invokeAll(new Fill(evaluators, expr, columns, from, mid, out),
+          new Fill(evaluators, expr, columns, mid, to, out));
+    }
+  }
+
+  // Computes {sum, compensation} over rows [from, to).
+  @SuppressWarnings("serial")
+  private class Sum extends RecursiveTask<double[]> {
+    private final Evaluators evaluators;
+    private final Expression expr;
+    private final Map<String, double[]> columns;
+    private final int from;
+    private final int to;
+
+    Sum(Evaluators evaluators, Expression expr, Map<String, double[]> columns, int from, int to) {
+      this.evaluators = evaluators;
+      this.expr = expr;
+      this.columns = columns;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected double[] compute() {
+      double[] result = {0.0, 0.0};
+      if (to - from <= LEAF_ROWS) {
+        double[] values = new double[to - from];
+        evaluators.evaluate(expr, columns, from, to, values, 0);
+        for (double value : values) {
+          add(result, value);
+        }
+        return result;
+      }
+      int mid = split(from, to);
+      Sum right = new Sum(evaluators, expr, columns, mid, to);
+      right.fork();
+      double[] left = new Sum(evaluators, expr, columns, from, mid).compute();
+      double[] other = right.join();
+      result[0] = left[0];
+      result[1] = left[1] + other[1];
+      add(result, other[0]);
+      return result;
+    }
+  }
+
+  // Neumaier's variant of Kahan summation.
+  private static void add(double[] acc, double value) {
+    double sum = acc[0] + value;
+    if (Math.abs(acc[0]) >= Math.abs(value)) {
+      acc[1] += (acc[0] - sum) + value;
+    } else {
+      acc[1] += (value - sum) + acc[0];
+    }
+    acc[0] = sum;
+  }
+}
@@ -8,26 +8,60 @@ public class Parser {
 	public static class ParseError extends RuntimeException {
 	  public final Token where;
 	  public final String msg;
+	  // The offset of where in the input, or its length when the input ended
+	  // early; -1 if unknown.
+	  public final int position;
 	  
-	  public ParseError(Token token, String msg) {
-	    super("Parse Error");
+	  public ParseError(Token token, String msg, int position) {
+	    super("Parse Error", null, false, false);
 	    this.where = token;
 	    this.msg = msg;
+	    this.position = position;
+	  }
+	  public ParseError(Token token, String msg) {
+	    this(token, msg, -1);
 	  }
 	}
 	
-	private ArrayList<Token> tokens;
+	private final Resolver resolver = new Resolver();
+	private final Lexer lexer = new Lexer();
+	// Tokens are pulled from the lexer as the parser reaches them. The window
+	// holds those from the previous token on, at their position modulo its
+	// length, along with the values of numbers and where each starts.
+	private Token[] window = new Token[16];
+	private double[] values = new double[16];
+	private int[] starts = new int[16];
+	private int length = 0;
+	private int pulled = 0;
+	private boolean exhausted = false;
+	private Token last = null;
 	private int current = 0;
 	
-	public Expression parse(String src) {
-	  tokens = new Scanner(src).getTokens();
-	  current = 0;
-	  if (atEnd()) return null;
-	  Expression expr = assignmentExpr();
-	  if (!atEnd()) {
-	    error("Expected end of expression.");
+	public Expression parse(CharSequence src) {
+	  Events.Parse event = new Events.Parse();
+	  Events.Scan scan = new Events.Scan();
+	  event.begin();
+	  scan.begin();
+	  try {
+	    lexer.reset(src);
+	    length = src.length();
+	    pulled = 0;
+	    exhausted = false;
+	    last = null;
+	    current = 0;
+	    if (atEnd()) return null;
+	    Expression expr = assignmentExpr();
+	    if (!atEnd()) {
+	      error("Expected end of expression.");
+	    }
+	    return resolver.resolve(expr);
+	  } finally {
+	    scan.length = src.length();
+	    scan.tokens = pulled;
+	    scan.commit();
+	    event.length = src.length();
+	    event.commit();
 	  }
-	  return expr;
 	}
 	
 	private Expression assignmentExpr() {
@@ -73,7 +107,9 @@ public class Parser {
 	  return left;
 	}
 	private Expression unaryExpr() {
-	  if (matchAny(PLUS, MINUS)) {
+	  // At the end, peek() keeps returning the last token, which would make
+	  // a trailing sign recurse forever.
+	  if (!atEnd() && matchAny(PLUS, MINUS)) {
 	    Token operator = previous();
 	    return new Expression.Unary(operator, unaryExpr());
 	  }
@@ -114,7 +150,7 @@ public class Parser {
 	  }
 	  
 	  if (match(NUMBER)) {
-	    return new Expression.Literal(previous());
+	    return new Expression.Literal(previous(), values[(current - 1) & (values.length - 1)]);
 	  } else if (match(IDENTIFIER)) {
 	    return new Expression.Variable(previous());
 	  } else if (match(LEFT_PAREN)) {
@@ -127,18 +163,54 @@ public class Parser {
 	  return null;
 	}
 	
+	// Pulls tokens up to and including index; false if the input ends first.
+	private boolean fill(int index) {
+	  while (pulled <= index) {
+	    if (exhausted || !lexer.next()) {
+	      exhausted = true;
+	      return false;
+	    }
+	    if (pulled - Math.max(current - 1, 0) >= window.length) {
+	      grow();
+	    }
+	    int at = pulled & (window.length - 1);
+	    last = lexer.token();
+	    window[at] = last;
+	    values[at] = lexer.number();
+	    starts[at] = lexer.start();
+	    pulled++;
+	  }
+	  return true;
+	}
+	private void grow() {
+	  Token[] tokens = new Token[window.length * 2];
+	  double[] numbers = new double[window.length * 2];
+	  int[] offsets = new int[window.length * 2];
+	  for (int i = Math.max(current - 1, 0); i < pulled; i++) {
+	    tokens[i & (tokens.length - 1)] = window[i & (window.length - 1)];
+	    numbers[i & (numbers.length - 1)] = values[i & (values.length - 1)];
+	    offsets[i & (offsets.length - 1)] = starts[i & (starts.length - 1)];
+	  }
+	  window = tokens;
+	  values = numbers;
+	  starts = offsets;
+	}
 	private Token getAtIndex(int index) {
-	  if (index >= tokens.size()) {
+	  if (!fill(index)) {
 	    return null;
 	  }
-	  return tokens.get(index);
+	  return window[index & (window.length - 1)];
 	}
 	// checks if src matches <ID>"("(<ID>(","<ID>)*)?")" "="
 	private boolean isFunctionDecl() {
 	  if (check(IDENTIFIER) && checkNext(LEFT_PAREN)) {
 	    int index = current + 2;
-	    if (getAtIndex(index).type != RIGHT_PAREN) {
-	      while (index < tokens.size()) {
+	    Token first = getAtIndex(index);
+	    if (first == null) {
+	      return false;
+	    }
+	    if (first.type != RIGHT_PAREN) {
+	      while (fill(index)) {
 	        Token id = getAtIndex(index++);
 	        if (id == null || id.type != IDENTIFIER) {
 	          return false;
@@ -200,23 +272,18 @@ public class Parser {
 	  return false;
 	}
 	private void error(String msg) {
-	  errorAt(peek(), msg);
-	}
-	private void errorAt(Token where, String msg) {
-	  throw new ParseError(where, msg);
+	  int position = fill(current) ? starts[current & (starts.length - 1)] : length;
+	  throw new ParseError(peek(), msg, position);
 	}
 	private Token peek(int distance) {
-	  int target = current + distance;
-	  if (target >= tokens.size()) {
-	    return tokens.get(tokens.size() - 1);
-	  }
-	  return tokens.get(target);
+	  Token token = getAtIndex(current + distance);
+	  return token != null ? token : last;
 	}
 	private Token peek() {
 	  return peek(0);
 	}
 	private Token previous() {
-	  return tokens.get(current - 1);
+	  return window[(current - 1) & (window.length - 1)];
 	}
 	private Token advance() {
 	  if (!atEnd()) {
@@ -225,6 +292,6 @@ public class Parser {
 	  return previous();
 	}
 	private boolean atEnd() {
-	  return current >= tokens.size();
+	  return !fill(current);
 	}
 }
\ No newline at end of file
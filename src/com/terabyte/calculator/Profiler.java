@@ -0,0 +1,200 @@
+package com.terabyte.calculator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import com.terabyte.calculator.Expression.*;
+
+// Counts how often each node of the evaluated trees runs and how long it
+// takes, and the same for each function called by name, user-defined or
+// foreign. It wraps a TreeInterpreter, which while profiling evaluates
+// every node through the profiler instead of directly.
+//
+// A node's total time includes its children, its self time does not.
+// A function's time runs from the outermost of its active calls, so a
+// function calling itself is not counted twice. Times include the cost of
+// timing itself, which is about that of one short node.
+//
+// Statistics hold on to the nodes they describe until reset.
+public class Profiler implements ExpressionVisitor<Double> {
+  public static final int WIDTH = 60;
+
+  private static final class Stats {
+    long count;
+    long total;
+    long self;
+    // Calls of a function currently being evaluated.
+    int active;
+  }
+
+  private final TreeInterpreter interp;
+  private final IdentityHashMap<Expression, Stats> nodes = new IdentityHashMap<>();
+  private final HashMap<String, Stats> functions = new HashMap<>();
+  // The time spent so far in the children of each node being evaluated.
+  private long[] children = new long[64];
+  private int depth = 0;
+
+  Profiler(TreeInterpreter interp) {
+    this.interp = interp;
+  }
+
+  public void reset() {
+    nodes.clear();
+    functions.clear();
+  }
+
+  private long enter() {
+    if (depth == children.length) {
+      long[] grown = new long[depth * 2];
+      System.arraycopy(children, 0, grown, 0, depth);
+      children = grown;
+    }
+    children[depth++] = 0;
+    return System.nanoTime();
+  }
+  private void exit(Expression expr, long start) {
+    long elapsed = System.nanoTime() - start;
+    depth--;
+    Stats stats = nodes.get(expr);
+    if (stats == null) {
+      stats = new Stats();
+      nodes.put(expr, stats);
+    }
+    stats.count++;
+    stats.total += elapsed;
+    stats.self += elapsed - children[depth];
+    if (depth > 0) {
+      children[depth - 1] += elapsed;
+    }
+  }
+
+  @Override
+  public Double visit(Literal expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  @Override
+  public Double visit(Unary expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  @Override
+  public Double visit(Binary expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  @Override
+  public Double visit(Group expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  @Override
+  public Double visit(Variable expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  @Override
+  public Double visit(Assignment expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  @Override
+  public Double visit(Function expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  @Override
+  public Double visit(Call expr) {
+    Stats function = functions.get(expr.name.lexeme);
+    if (function == null) {
+      function = new Stats();
+      functions.put(expr.name.lexeme, function);
+    }
+    function.count++;
+    function.active++;
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+      if (--function.active == 0) {
+        function.total += System.nanoTime() - start;
+      }
+    }
+  }
+
+  @Override
+  public Double visit(Let expr) {
+    long start = enter();
+    try {
+      return interp.visit(expr);
+    } finally {
+      exit(expr, start);
+    }
+  }
+
+  // The functions by total time, then the limit nodes with the most self
+  // time, each printed as ExpressionPrinter does, cut to WIDTH characters.
+  public String report(int limit) {
+    StringBuilder out = new StringBuilder();
+    ArrayList<Map.Entry<String, Stats>> byFunction = new ArrayList<>(functions.entrySet());
+    byFunction.sort((a, b) -> Long.compare(b.getValue().total, a.getValue().total));
+    out.append(String.format("%12s %12s  %s%n", "calls", "total ms", "function"));
+    for (Map.Entry<String, Stats> entry : byFunction) {
+      Stats stats = entry.getValue();
+      out.append(String.format("%12d %12.3f  %s%n", stats.count, stats.total / 1e6, entry.getKey()));
+    }
+    out.append(System.lineSeparator());
+
+    ArrayList<Map.Entry<Expression, Stats>> byNode = new ArrayList<>(nodes.entrySet());
+    byNode.sort((a, b) -> Long.compare(b.getValue().self, a.getValue().self));
+    ExpressionPrinter printer = new ExpressionPrinter();
+    out.append(String.format("%12s %12s %12s  %s%n", "count", "total ms", "self ms", "node"));
+    for (int i = 0; i < byNode.size() && i < limit; i++) {
+      Stats stats = byNode.get(i).getValue();
+      String node = printer.getString(byNode.get(i).getKey());
+      if (node.length() > WIDTH) {
+        node = node.substring(0, WIDTH - 3) + "...";
+      }
+      out.append(String.format("%12d %12.3f %12.3f  %s%n",
+          stats.count, stats.total / 1e6, stats.self / 1e6, node));
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,119 @@
+package com.terabyte.calculator;
+
+import java.util.ArrayList;
+import com.terabyte.calculator.Expression.*;
+
+// Binds every variable inside a function body that names one of its
+// parameters to that parameter's frame slot. All other variables are
+// globals and keep slot -1.
+public class Resolver implements ExpressionVisitor<Expression> {
+  private ArrayList<Token> params = new ArrayList<>();
+
+  public Expression resolve(Expression expr) {
+    if (expr == null) {
+      return null;
+    }
+    return expr.accept(this);
+  }
+
+  @Override
+  public Expression visit(Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expression visit(Unary expr) {
+    Expression operand = expr.operand.accept(this);
+    if (operand == expr.operand) {
+      return expr;
+    }
+    return new Unary(expr.operator, operand);
+  }
+
+  @Override
+  public Expression visit(Binary expr) {
+    Expression left = expr.left.accept(this);
+    Expression right = expr.right.accept(this);
+    if (left == expr.left && right == expr.right) {
+      return expr;
+    }
+    return new Binary(left, expr.operator, right);
+  }
+
+  @Override
+  public Expression visit(Group expr) {
+    Expression inner = expr.expression.accept(this);
+    if (inner == expr.expression) {
+      return expr;
+    }
+    return new Group(inner);
+  }
+
+  @Override
+  public Expression visit(Variable expr) {
+    // Later parameters shadow earlier ones of the same name.
+    for (int i = params.size() - 1; i >= 0; i--) {
+      if (params.get(i).lexeme.equals(expr.name.lexeme)) {
+        return expr.slot == i ? expr : new Variable(expr.name, i);
+      }
+    }
+    return expr.slot == -1 ? expr : new Variable(expr.name);
+  }
+
+  @Override
+  public Expression visit(Assignment expr) {
+    Expression value = expr.value.accept(this);
+    if (value == expr.value) {
+      return expr;
+    }
+    return new Assignment(expr.target, value);
+  }
+
+  @Override
+  public Expression visit(Function expr) {
+    ArrayList<Token> enclosing = params;
+    params = expr.params;
+    try {
+      Expression body = expr.expression.accept(this);
+      if (body == expr.expression) {
+        return expr;
+      }
+      return new Function(expr.name, expr.params, body);
+    } finally {
+      params = enclosing;
+    }
+  }
+
+  @Override
+  public Expression visit(Call expr) {
+    ArrayList<Expression> args = new ArrayList<>(expr.args.size());
+    boolean changed = false;
+    for (Expression arg : expr.args) {
+      Expression resolved = arg.accept(this);
+      changed |= resolved != arg;
+      args.add(resolved);
+    }
+    if (!changed) {
+      return expr;
+    }
+    return new Call(expr.name, args);
+  }
+
+  @Override
+  public Expression visit(Let expr) {
+    Expression value = expr.value.accept(this);
+    ArrayList<Token> enclosing = params;
+    int slot = enclosing.size();
+    params = new ArrayList<>(enclosing);
+    params.add(expr.name);
+    try {
+      Expression body = expr.body.accept(this);
+      if (value == expr.value && body == expr.body && slot == expr.slot) {
+        return expr;
+      }
+      return new Let(expr.name, slot, value, body);
+    } finally {
+      params = enclosing;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.terabyte.calculator;
+
+import com.terabyte.calculator.Parser.ParseError;
+import com.terabyte.calculator.Scanner.LexicalError;
+
+// What evaluating one input gave: a value, nothing for definitions and
+// empty input, or an error with its kind, message and, for lexical and
+// syntax errors, the offset in the input where it was found. Errors found
+// while evaluating have no position, since trees do not keep one.
+public final class Result {
+  static final Result NONE = new Result(null, null, null, -1);
+
+  public final Double value;
+  public final ErrorKind error;
+  public final String message;
+  public final int position;
+
+  private Result(Double value, ErrorKind error, String message, int position) {
+    this.value = value;
+    this.error = error;
+    this.message = message;
+    this.position = position;
+  }
+
+  static Result of(Double value) {
+    return value == null ? NONE : new Result(value, null, null, -1);
+  }
+  // Null if err is not a calculator error.
+  static Result failure(Throwable err) {
+    ErrorKind kind = ErrorKind.of(err);
+    if (kind == null) {
+      return null;
+    }
+    int position = -1;
+    if (err instanceof LexicalError) {
+      position = ((LexicalError) err).position;
+    } else if (err instanceof ParseError) {
+      position = ((ParseError) err).position;
+    }
+    return new Result(null, kind, Calculator.describe(err), position);
+  }
+
+  public boolean isError() {
+    return error != null;
+  }
+  public boolean hasValue() {
+    return value != null;
+  }
+  public String toString() {
+    return isError() ? message : value == null ? "" : value.toString();
+  }
+}
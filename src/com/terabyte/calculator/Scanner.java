@@ -4,6 +4,8 @@ import static com.terabyte.calculator.Token.Type.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+// Splits a whole input into a list of tokens. The parser reads its input
+// through Lexer instead; this class also holds the LexicalError both throw.
 public class Scanner {
 	private String src;
 	private int start;
@@ -19,11 +21,17 @@ public class Scanner {
 	public static class LexicalError extends RuntimeException {
 	  public final String where;
 	  public final String msg;
+	  // The offset of where in the input, or -1.
+	  public final int position;
 	  
-	  public LexicalError(String where, String msg) {
-	    super("Lexical Error");
+	  public LexicalError(String where, String msg, int position) {
+	    super("Lexical Error", null, false, false);
 	    this.where = where;
 	    this.msg = msg;
+	    this.position = position;
+	  }
+	  public LexicalError(String where, String msg) {
+	    this(where, msg, -1);
 	  }
 	}
 	
@@ -66,7 +74,7 @@ public class Scanner {
 	    default:
 	      if (Character.isLetter(ch) || ch == '_') {
 	        return handleIdentifiers();
-	      } else if (Character.isDigit(ch)) {
+	      } else if (isDigit(ch)) {
 	        return handleNumbers();
 	      } else {
 	        error("Invalid character.");
@@ -76,18 +84,21 @@ public class Scanner {
   }
 	
 	private void error(String msg) {
-	  throw new LexicalError(src.subSequence(start, current).toString(), msg);
+	  throw new LexicalError(src.subSequence(start, current).toString(), msg, start);
 	}
 	private Token makeToken(Token.Type type) {
 	  return new Token(type, src.subSequence(start, current).toString());
 	}
+	private static boolean isDigit(char ch) {
+	  return ch >= '0' && ch <= '9';
+	}
 	private Token handleNumbers() {
-	  while (Character.isDigit(peek())) {
+	  while (isDigit(peek())) {
 	    advance();
 	  }
 	  if (peek() == '.') {
 	    advance();
-	    while (Character.isDigit(peek())) {
+	    while (isDigit(peek())) {
 	      advance();
 	    }
 	  }
@@ -96,10 +107,10 @@ public class Scanner {
 	    if (check('+') || check('-')) {
 	      advance();
 	    }
-	    if (!Character.isDigit(advance())) {
+	    if (!isDigit(advance())) {
 	      error("Ill-formed number literal.");
 	    }
-	    while (Character.isDigit(peek())) {
+	    while (isDigit(peek())) {
 	      advance();
 	    }
 	  }
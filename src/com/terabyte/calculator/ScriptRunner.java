@@ -0,0 +1,370 @@
+package com.terabyte.calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import com.terabyte.calculator.ExpressionCache.Entry;
+
+// Runs a file of newline-separated inputs through a Calculator and writes
+// one line of output per line of input: what Calculator.evaluate would
+// have returned for it, so statements and blank lines give empty lines
+// and errors give their message.
+//
+// The work is split into four stages on their own threads, connected by
+// bounded queues of batches of lines:
+//  - scan: splits the memory-mapped file into lines;
+//  - parse: looks each line up in the calculator's cache, or parses it;
+//  - evaluate: runs the lines in order against the calculator's state;
+//  - write: formats the results into a buffer flushed to the output.
+// Parsing does not depend on the state, so only evaluation has to be
+// sequential. The calculator must not be used elsewhere during a run.
+//
+// A line that throws something other than a calculator error gets an
+// "Unexpected Error!" line of its own; only failures to read or write,
+// and Errors other than stack overflows, end the run. Output written to
+// a path goes to a temporary file first, which replaces the path only
+// once the run has succeeded.
+//
+// When a stage fails the others stop at their next queue operation. They
+// are never interrupted: an interrupt while writing to the output, an
+// InterruptibleChannel such as a FileChannel, would close it.
+public class ScriptRunner {
+  public static final int BATCH_LINES = 1024;
+  public static final int QUEUE_LENGTH = 16;
+  private static final long WINDOW = 64L << 20;
+  private static final int OUTPUT_BUFFER = 1 << 20;
+  // How often a stage waiting on a queue checks whether another failed.
+  private static final long POLL_MILLIS = 10;
+
+  private static final byte VALUE = 0;
+  private static final byte NONE = 1;
+  private static final byte ERROR = 2;
+
+  public static final class Summary {
+    public final long lines;
+    public final long errors;
+
+    Summary(long lines, long errors) {
+      this.lines = lines;
+      this.errors = errors;
+    }
+  }
+
+  private static final class Batch {
+    final String[] lines = new String[BATCH_LINES];
+    final Entry[] entries = new Entry[BATCH_LINES];
+    final Expression[] parsed = new Expression[BATCH_LINES];
+    final byte[] kinds = new byte[BATCH_LINES];
+    final double[] values = new double[BATCH_LINES];
+    final String[] messages = new String[BATCH_LINES];
+    int size = 0;
+  }
+  // Marks the end of the input on every queue.
+  private static final Batch END = new Batch();
+
+  private interface Stage {
+    void run() throws Exception;
+  }
+
+  // Thrown out of a stage waiting on a queue after another stage failed.
+  @SuppressWarnings("serial")
+  private static final class Stopped extends RuntimeException {
+    Stopped() {
+      super("Stopped", null, false, false);
+    }
+  }
+
+  // A bounded queue between two stages, whose waits end once any stage of
+  // the run has failed.
+  private static final class Pipe {
+    private final ArrayBlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+    private final AtomicReference<Throwable> failure;
+
+    Pipe(AtomicReference<Throwable> failure) {
+      this.failure = failure;
+    }
+
+    void put(Batch batch) throws InterruptedException {
+      do {
+        check();
+      } while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    Batch take() throws InterruptedException {
+      Batch batch;
+      do {
+        check();
+      } while ((batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null);
+      return batch;
+    }
+    private void check() {
+      if (failure.get() != null) {
+        throw new Stopped();
+      }
+    }
+  }
+
+  private final Calculator calculator;
+
+  public ScriptRunner(Calculator calculator) {
+    this.calculator = calculator;
+  }
+
+  public Summary run(Path input, Path output) throws IOException {
+    Path absolute = output.toAbsolutePath();
+    Path temporary = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+    try {
+      Summary summary;
+      try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        summary = run(input, out);
+      }
+      Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return summary;
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  public Summary run(Path input, WritableByteChannel output) throws IOException {
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Pipe scanned = new Pipe(failure);
+    Pipe parsed = new Pipe(failure);
+    Pipe evaluated = new Pipe(failure);
+    long[] counts = new long[2];
+
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+      Thread[] stages = new Thread[4];
+      stages[0] = stage("scan", () -> scan(in, scanned), failure);
+      stages[1] = stage("parse", () -> parse(scanned, parsed), failure);
+      stages[2] = stage("evaluate", () -> evaluate(parsed, evaluated), failure);
+      stages[3] = stage("write", () -> write(evaluated, output, counts), failure);
+      for (Thread stage : stages) {
+        stage.start();
+      }
+      try {
+        for (Thread stage : stages) {
+          stage.join();
+        }
+      } catch (InterruptedException err) {
+        // The stages are left to stop on their own.
+        failure.compareAndSet(null, err);
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while running script.");
+      }
+    }
+
+    Throwable err = failure.get();
+    if (err instanceof IOException) {
+      throw (IOException) err;
+    } else if (err instanceof RuntimeException) {
+      throw (RuntimeException) err;
+    } else if (err instanceof Error) {
+      throw (Error) err;
+    } else if (err != null) {
+      throw new IOException(err);
+    }
+    return new Summary(counts[0], counts[1]);
+  }
+
+  // The first stage to fail records why, which stops the others.
+  private static Thread stage(String name, Stage body, AtomicReference<Throwable> failure) {
+    return new Thread(() -> {
+      try {
+        body.run();
+      } catch (Stopped err) {
+        // Another stage failed first.
+      } catch (Throwable err) {
+        failure.compareAndSet(null, err);
+      }
+    }, "script-" + name);
+  }
+
+  private void scan(FileChannel in, Pipe out) throws IOException, InterruptedException {
+    long size = in.size();
+    long position = 0;
+    long windowSize = WINDOW;
+    byte[] line = new byte[256];
+    Batch batch = new Batch();
+    while (position < size) {
+      long length = Math.min(windowSize, size - position);
+      MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+      // Only whole lines are taken from a window, unless it reaches the
+      // end of the file; a line longer than a window gets a bigger one.
+      int end = (int) length;
+      if (position + length < size) {
+        while (end > 0 && window.get(end - 1) != '\n') {
+          end--;
+        }
+        if (end == 0) {
+          if (windowSize >= Integer.MAX_VALUE / 2) {
+            throw new IOException("Line too long.");
+          }
+          windowSize *= 2;
+          continue;
+        }
+      }
+      int start = 0;
+      while (start < end) {
+        int stop = start;
+        while (stop < end && window.get(stop) != '\n') {
+          stop++;
+        }
+        int count = stop - start;
+        if (count > 0 && window.get(stop - 1) == '\r') {
+          count--;
+        }
+        if (count > line.length) {
+          line = new byte[Math.max(count, line.length * 2)];
+        }
+        window.get(start, line, 0, count);
+        batch.lines[batch.size++] = new String(line, 0, count, StandardCharsets.UTF_8);
+        if (batch.size == BATCH_LINES) {
+          out.put(batch);
+          batch = new Batch();
+        }
+        start = stop + 1;
+      }
+      position += end;
+    }
+    if (batch.size > 0) {
+      out.put(batch);
+    }
+    out.put(END);
+  }
+
+  private void parse(Pipe in, Pipe out) throws InterruptedException {
+    Parser parser = new Parser();
+    ExpressionCache cache = calculator.getCache();
+    Metrics metrics = calculator.getMetrics();
+    for (Batch batch = in.take(); batch != END; batch = in.take()) {
+      for (int i = 0; i < batch.size; i++) {
+        Entry entry = cache.get(batch.lines[i]);
+        batch.entries[i] = entry;
+        if (entry != null) {
+          continue;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+          batch.parsed[i] = parser.parse(batch.lines[i]);
+        } catch (RuntimeException | StackOverflowError err) {
+          fail(batch, i, err);
+          ErrorKind kind = ErrorKind.of(err);
+          if (metrics != null && kind != null) {
+            metrics.failed(kind, System.nanoTime() - start);
+          }
+        }
+      }
+      out.put(batch);
+    }
+    out.put(END);
+  }
+
+  // Metrics are told about lines that fail to parse as they are parsed,
+  // and about the others as they are evaluated, leaving out the parsing.
+  // Unexpected errors have no ErrorKind and are not reported.
+  private void evaluate(Pipe in, Pipe out) throws InterruptedException {
+    Metrics metrics = calculator.getMetrics();
+    for (Batch batch = in.take(); batch != END; batch = in.take()) {
+      for (int i = 0; i < batch.size; i++) {
+        if (batch.kinds[i] == ERROR) {
+          continue;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+          Double result = calculator.execute(calculator.prepare(batch.lines[i], batch.entries[i], batch.parsed[i]));
+          if (result != null) {
+            batch.values[i] = result;
+          } else {
+            batch.kinds[i] = NONE;
+          }
+          if (metrics != null) {
+            metrics.evaluated(System.nanoTime() - start);
+          }
+        } catch (RuntimeException | StackOverflowError err) {
+          fail(batch, i, err);
+          ErrorKind kind = ErrorKind.of(err);
+          if (metrics != null && kind != null) {
+            metrics.failed(kind, System.nanoTime() - start);
+          }
+        }
+        batch.entries[i] = null;
+        batch.parsed[i] = null;
+      }
+      out.put(batch);
+    }
+    out.put(END);
+  }
+
+  private static void fail(Batch batch, int i, Throwable err) {
+    String message = Calculator.describe(err);
+    if (message == null) {
+      message = String.format("Unexpected Error! %s", err);
+    }
+    batch.kinds[i] = ERROR;
+    batch.messages[i] = message;
+  }
+
+  private void write(Pipe in, WritableByteChannel out, long[] counts) throws IOException, InterruptedException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER);
+    DoubleFormatter formatter = new DoubleFormatter();
+    long lines = 0;
+    long errors = 0;
+    // Lines already finished are written out even if the run fails.
+    try {
+      for (Batch batch = in.take(); batch != END; batch = in.take()) {
+        for (int i = 0; i < batch.size; i++) {
+          if (buffer.remaining() < 64) {
+            flush(buffer, out);
+          }
+          switch (batch.kinds[i]) {
+            case VALUE:
+              formatter.putGeneral(buffer, batch.values[i]);
+              break;
+            case ERROR:
+              errors++;
+              byte[] message = batch.messages[i].getBytes(StandardCharsets.UTF_8);
+              for (int at = 0; at < message.length; ) {
+                if (!buffer.hasRemaining()) {
+                  flush(buffer, out);
+                }
+                int count = Math.min(buffer.remaining(), message.length - at);
+                buffer.put(message, at, count);
+                at += count;
+              }
+              if (!buffer.hasRemaining()) {
+                flush(buffer, out);
+              }
+              break;
+            default:
+              break;
+          }
+          buffer.put((byte) '\n');
+          lines++;
+        }
+      }
+    } catch (Stopped err) {
+      flush(buffer, out);
+      throw err;
+    }
+    flush(buffer, out);
+    counts[0] = lines;
+    counts[1] = errors;
+  }
+
+  private static void flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+}
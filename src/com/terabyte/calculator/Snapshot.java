@@ -0,0 +1,400 @@
+package com.terabyte.calculator;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import com.terabyte.calculator.Environment.LoadError;
+import com.terabyte.calculator.Expression.*;
+import static com.terabyte.calculator.Token.Type.*;
+
+// A binary image of the variables and user functions of an environment.
+// Foreign functions are not saved; they are provided by the interpreter.
+//
+// All numbers are big-endian. The file starts with the magic "CALC" and the
+// format version, followed by the count of variables and each variable's
+// name and value, then the count of functions and each function's name,
+// parameters and body. Bodies are stored in prefix order, one tag byte per
+// node; they are saved as optimized, slots and bindings included, so they
+// do not need to be resolved again when loaded. Loading still checks that
+// each operator fits its node and each slot its frame, so a corrupt file
+// fails with a LoadError instead of producing a broken tree.
+//
+// Strings are written once: the first occurrence is a varint 0 followed by
+// the length and UTF-8 bytes, later ones are the varint index + 1 of the
+// first.
+public class Snapshot {
+  private static final int MAGIC = 0x43414C43;
+  private static final int FORMAT = 1;
+
+  private static final byte LITERAL = 0;
+  private static final byte UNARY = 1;
+  private static final byte BINARY = 2;
+  private static final byte GROUP = 3;
+  private static final byte VARIABLE = 4;
+  private static final byte CALL = 5;
+  private static final byte LET = 6;
+
+  final String[] names;
+  final double[] values;
+  final Function[] functions;
+
+  private Snapshot(String[] names, double[] values, Function[] functions) {
+    this.names = names;
+    this.values = values;
+    this.functions = functions;
+  }
+
+  // Defines everything in the snapshot in env, replacing definitions of
+  // the same names.
+  void restore(Environment env) {
+    for (int i = 0; i < names.length; i++) {
+      env.defineDouble(names[i], values[i]);
+    }
+    for (Function fn : functions) {
+      env.defineFunction(fn.name.lexeme, fn);
+    }
+  }
+
+  // The snapshot is written next to path and then moved over it, so a
+  // failed write leaves any previous snapshot intact.
+  static void write(Environment env, Path path) throws IOException {
+    Path absolute = path.toAbsolutePath();
+    Path temporary = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        Writer writer = new Writer(out);
+        writer.write(env);
+        writer.flush();
+        out.force(false);
+      }
+      Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  static Snapshot read(Path path) throws IOException {
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      try {
+        return new Reader(buffer).read();
+      } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException err) {
+        throw new LoadError("Truncated or corrupt snapshot.");
+      }
+    }
+  }
+
+  // Streams the snapshot through a fixed buffer, so writing needs no more
+  // memory than the string table whatever the size of the environment.
+  private static final class Writer {
+    private final FileChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocate(1 << 16);
+    private final HashMap<String, Integer> strings = new HashMap<>();
+
+    Writer(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void flush() throws IOException {
+      out.flip();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      out.clear();
+    }
+    private void reserve(int bytes) throws IOException {
+      if (out.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    void write(Environment env) throws IOException {
+      out.putInt(MAGIC);
+      out.putInt(FORMAT);
+      SymbolTrie entries = env.getEntries();
+      int count = 0;
+      ArrayList<Function> functions = new ArrayList<>();
+      for (int sym = entries.next(0); sym >= 0; sym = entries.next(sym + 1)) {
+        if (entries.hasDouble(sym)) {
+          count++;
+        } else if (entries.getFunction(sym) instanceof Function) {
+          functions.add((Function) entries.getFunction(sym));
+        }
+      }
+      writeVarint(count);
+      for (int sym = entries.next(0); sym >= 0; sym = entries.next(sym + 1)) {
+        if (entries.hasDouble(sym)) {
+          writeString(Symbols.name(sym));
+          reserve(Double.BYTES);
+          out.putDouble(entries.getDouble(sym));
+        }
+      }
+      writeVarint(functions.size());
+      for (Function fn : functions) {
+        writeString(fn.name.lexeme);
+        writeVarint(fn.params.size());
+        for (Token param : fn.params) {
+          writeString(param.lexeme);
+        }
+        writeTree(fn.expression);
+      }
+    }
+
+    private void writeByte(int value) throws IOException {
+      reserve(1);
+      out.put((byte) value);
+    }
+    private void writeVarint(int value) throws IOException {
+      reserve(5);
+      while ((value & ~0x7F) != 0) {
+        out.put((byte) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      out.put((byte) value);
+    }
+
+    private void writeString(String value) throws IOException {
+      Integer index = strings.get(value);
+      if (index != null) {
+        writeVarint(index + 1);
+        return;
+      }
+      strings.put(value, strings.size());
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(0);
+      writeVarint(bytes.length);
+      for (int at = 0; at < bytes.length; ) {
+        reserve(1);
+        int count = Math.min(out.remaining(), bytes.length - at);
+        out.put(bytes, at, count);
+        at += count;
+      }
+    }
+
+    private void writeTree(Expression expr) throws IOException {
+      if (expr instanceof Literal) {
+        Literal literal = (Literal) expr;
+        reserve(1 + Double.BYTES);
+        out.put(LITERAL);
+        out.putDouble(literal.value);
+        writeString(literal.literal.lexeme);
+      } else if (expr instanceof Unary) {
+        Unary unary = (Unary) expr;
+        writeByte(UNARY);
+        writeByte(unary.operator.type.ordinal());
+        writeTree(unary.operand);
+      } else if (expr instanceof Binary) {
+        Binary binary = (Binary) expr;
+        writeByte(BINARY);
+        writeByte(binary.operator.type.ordinal());
+        writeTree(binary.left);
+        writeTree(binary.right);
+      } else if (expr instanceof Group) {
+        writeByte(GROUP);
+        writeTree(((Group) expr).expression);
+      } else if (expr instanceof Variable) {
+        Variable var = (Variable) expr;
+        writeByte(VARIABLE);
+        writeString(var.name.lexeme);
+        writeVarint(var.slot + 1);
+      } else if (expr instanceof Call) {
+        Call call = (Call) expr;
+        writeByte(CALL);
+        writeString(call.name.lexeme);
+        writeVarint(call.args.size());
+        for (Expression arg : call.args) {
+          writeTree(arg);
+        }
+      } else if (expr instanceof Let) {
+        Let let = (Let) expr;
+        writeByte(LET);
+        writeString(let.name.lexeme);
+        writeVarint(let.slot);
+        writeTree(let.value);
+        writeTree(let.body);
+      } else {
+        // Function bodies are expressions; parsing guarantees it.
+        throw new AssertionError();
+      }
+    }
+  }
+
+  private static final class Reader {
+    // Deeper bodies than this are taken as corrupt rather than risk
+    // overflowing the stack while reading or evaluating them.
+    private static final int MAX_DEPTH = 1000;
+
+    private final MappedByteBuffer in;
+    private final ArrayList<String> strings = new ArrayList<>();
+    // The identifier token for each string, made when first needed.
+    private final ArrayList<Token> names = new ArrayList<>();
+    private int lastString;
+    // The slots of the body being read: its parameters, then the bindings
+    // in scope of the current node.
+    private int frame;
+    private int depth;
+
+    Reader(MappedByteBuffer in) {
+      this.in = in;
+    }
+
+    Snapshot read() {
+      if (in.remaining() < 8 || in.getInt() != MAGIC) {
+        throw new LoadError("Not a calculator snapshot.");
+      }
+      int format = in.getInt();
+      if (format != FORMAT) {
+        throw new LoadError(String.format("Unsupported snapshot format %d.", format));
+      }
+      int count = readCount();
+      String[] variables = new String[count];
+      double[] values = new double[count];
+      for (int i = 0; i < count; i++) {
+        variables[i] = readString();
+        values[i] = in.getDouble();
+      }
+      count = readCount();
+      Function[] functions = new Function[count];
+      for (int i = 0; i < count; i++) {
+        Token name = readName();
+        int arity = readCount();
+        ArrayList<Token> params = new ArrayList<>(arity);
+        for (int j = 0; j < arity; j++) {
+          params.add(readName());
+        }
+        frame = arity;
+        functions[i] = new Function(name, params, readTree());
+      }
+      if (in.hasRemaining()) {
+        throw new LoadError("Trailing data after snapshot.");
+      }
+      return new Snapshot(variables, values, functions);
+    }
+
+    private int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        byte b = in.get();
+        value |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new LoadError("Truncated or corrupt snapshot.");
+    }
+    // Counts are bounded by the bytes left, so a corrupt one cannot cause
+    // a huge allocation.
+    private int readCount() {
+      int count = readVarint();
+      if (count < 0 || count > in.remaining()) {
+        throw new LoadError("Truncated or corrupt snapshot.");
+      }
+      return count;
+    }
+
+    private String readString() {
+      int ref = readVarint();
+      if (ref > 0) {
+        lastString = ref - 1;
+        return strings.get(lastString);
+      }
+      byte[] bytes = new byte[readCount()];
+      in.get(bytes);
+      lastString = strings.size();
+      strings.add(new String(bytes, StandardCharsets.UTF_8));
+      names.add(null);
+      return strings.get(lastString);
+    }
+    private Token readName() {
+      String name = readString();
+      Token token = names.get(lastString);
+      if (token == null) {
+        token = new Token(IDENTIFIER, name);
+        names.set(lastString, token);
+      }
+      return token;
+    }
+    private Token readOperator(Token.Type... allowed) {
+      int type = in.get();
+      for (Token.Type t : allowed) {
+        if (type == t.ordinal()) {
+          return Token.of(t);
+        }
+      }
+      throw new LoadError("Truncated or corrupt snapshot.");
+    }
+
+    private Expression readTree() {
+      if (++depth > MAX_DEPTH) {
+        throw new LoadError("Snapshot nests too deeply.");
+      }
+      try {
+        return readNode();
+      } finally {
+        depth--;
+      }
+    }
+    private Expression readNode() {
+      switch (in.get()) {
+        case LITERAL: {
+          double value = in.getDouble();
+          return new Literal(new Token(NUMBER, readString()), value);
+        }
+        case UNARY: {
+          Token operator = readOperator(MINUS, MODULO);
+          return new Unary(operator, readTree());
+        }
+        case BINARY: {
+          Token operator = readOperator(PLUS, MINUS, ASTERISK, SLASH, MOD, CARET);
+          Expression left = readTree();
+          return new Binary(left, operator, readTree());
+        }
+        case GROUP:
+          return new Group(readTree());
+        case VARIABLE: {
+          Token name = readName();
+          int slot = readVarint() - 1;
+          if (slot < -1 || slot >= frame) {
+            throw new LoadError("Truncated or corrupt snapshot.");
+          }
+          return new Variable(name, slot);
+        }
+        case CALL: {
+          Token name = readName();
+          int count = readCount();
+          ArrayList<Expression> args = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            args.add(readTree());
+          }
+          return new Call(name, args);
+        }
+        case LET: {
+          Token name = readName();
+          int slot = readVarint();
+          // A binding takes the next free slot, and only its body sees it.
+          if (slot != frame) {
+            throw new LoadError("Truncated or corrupt snapshot.");
+          }
+          Expression value = readTree();
+          frame++;
+          try {
+            return new Let(name, slot, value, readTree());
+          } finally {
+            frame--;
+          }
+        }
+        default:
+          throw new LoadError("Truncated or corrupt snapshot.");
+      }
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package com.terabyte.calculator;
+
+import static com.terabyte.calculator.Token.Type.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import com.terabyte.calculator.Expression.*;
+
+// Hoists pure subexpressions that occur more than once in a scope (a
+// function body or a top-level expression) into Let bindings at the root
+// of that scope, so each is evaluated once. Bindings take the frame slots
+// after the scope's parameters.
+//
+// Hoisting moves the evaluation of a subexpression before everything that
+// came before its first occurrence. That is only done where it cannot
+// change which error is reported: when nothing evaluated earlier can fail,
+// or when the subexpression itself cannot.
+public class SubexpressionEliminator {
+  private final TreeInterpreter state;
+
+  // Per-scope numbering: structurally equal nodes share an id.
+  private final IdentityHashMap<Expression, Integer> ids = new IdentityHashMap<>();
+  private final HashMap<String, Integer> keys = new HashMap<>();
+  private final ArrayList<Expression> nodes = new ArrayList<>();
+  private final ArrayList<Integer> sizes = new ArrayList<>();
+  private final ArrayList<Boolean> pures = new ArrayList<>();
+  private int[] counts;
+  private boolean[] shared;
+  // Whether each id may be hoisted, decided at its first occurrence.
+  private boolean[] hoistable;
+  private boolean[] seen;
+  // Whether anything evaluated so far could have failed.
+  private boolean risky;
+  private Variable[] temps;
+  private final ArrayList<Let> bindings = new ArrayList<>();
+  private int base;
+
+  public SubexpressionEliminator(TreeInterpreter state) {
+    this.state = state;
+  }
+
+  public Expression eliminate(Expression expr) {
+    if (expr instanceof Function) {
+      Function fn = (Function) expr;
+      Expression body = share(fn.expression, fn.params.size());
+      return body == fn.expression ? fn : new Function(fn.name, fn.params, body);
+    } else if (expr instanceof Assignment) {
+      Assignment assign = (Assignment) expr;
+      Expression value = share(assign.value, 0);
+      return value == assign.value ? assign : new Assignment(assign.target, value);
+    } else if (expr == null) {
+      return null;
+    }
+    return share(expr, 0);
+  }
+
+  // Duplicating a pure expression can change its cost but not its result.
+  boolean isPure(Expression expr) {
+    if (expr instanceof Literal || expr instanceof Variable) {
+      return true;
+    } else if (expr instanceof Group) {
+      return isPure(((Group) expr).expression);
+    } else if (expr instanceof Unary) {
+      return isPure(((Unary) expr).operand);
+    } else if (expr instanceof Binary) {
+      Binary binary = (Binary) expr;
+      return isPure(binary.left) && isPure(binary.right);
+    } else if (expr instanceof Call) {
+      Call call = (Call) expr;
+      for (Expression arg : call.args) {
+        if (!isPure(arg)) {
+          return false;
+        }
+      }
+      return state.isPureForeign(call.name.lexeme);
+    }
+    return false;
+  }
+
+  private Expression share(Expression scope, int base) {
+    try {
+      if (number(scope) < 0) {
+        return scope;
+      }
+      this.base = base;
+      int total = nodes.size();
+      counts = new int[total];
+      shared = new boolean[total];
+      temps = new Variable[total];
+      hoistable = new boolean[total];
+      seen = new boolean[total];
+      risky = false;
+      count(scope);
+      order(scope);
+
+      // Larger subtrees first: once a subtree is shared, the occurrences
+      // of its descendants in the other copies are no longer evaluated.
+      Integer[] order = new Integer[total];
+      for (int i = 0; i < total; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> sizes.get(b) - sizes.get(a));
+      boolean any = false;
+      for (int id : order) {
+        if (sizes.get(id) > 1 && pures.get(id) && hoistable[id] && counts[id] >= 2) {
+          shared[id] = true;
+          any = true;
+          discount(nodes.get(id), counts[id] - 1, true);
+        }
+      }
+      if (!any) {
+        return scope;
+      }
+
+      Expression body = rewrite(scope);
+      for (int i = bindings.size() - 1; i >= 0; i--) {
+        Let let = bindings.get(i);
+        body = new Let(let.name, let.slot, let.value, body);
+      }
+      return body;
+    } finally {
+      ids.clear();
+      keys.clear();
+      nodes.clear();
+      sizes.clear();
+      pures.clear();
+      bindings.clear();
+      counts = null;
+      shared = null;
+      temps = null;
+      hoistable = null;
+      seen = null;
+    }
+  }
+
+  // Assigns structural ids bottom-up. Returns -1 if the scope cannot be
+  // handled, which is the case for trees that already contain bindings.
+  private int number(Expression expr) {
+    String key;
+    int size = 1;
+    boolean pure = true;
+    if (expr instanceof Literal) {
+      key = "L" + Double.doubleToRawLongBits(((Literal) expr).value);
+    } else if (expr instanceof Variable) {
+      Variable var = (Variable) expr;
+      key = "V" + var.slot + ":" + var.name.lexeme;
+    } else if (expr instanceof Group) {
+      int inner = number(((Group) expr).expression);
+      if (inner >= 0) {
+        ids.put(expr, inner);
+      }
+      return inner;
+    } else if (expr instanceof Unary) {
+      Unary unary = (Unary) expr;
+      int operand = number(unary.operand);
+      if (operand < 0) {
+        return -1;
+      }
+      key = "U" + unary.operator.type + "," + operand;
+      size += sizes.get(operand);
+      pure = pures.get(operand);
+    } else if (expr instanceof Binary) {
+      Binary binary = (Binary) expr;
+      int left = number(binary.left);
+      int right = left < 0 ? -1 : number(binary.right);
+      if (right < 0) {
+        return -1;
+      }
+      key = "B" + binary.operator.type + "," + left + "," + right;
+      size += sizes.get(left) + sizes.get(right);
+      pure = pures.get(left) && pures.get(right);
+    } else if (expr instanceof Call) {
+      Call call = (Call) expr;
+      StringBuilder builder = new StringBuilder("C").append(call.name.lexeme);
+      for (Expression arg : call.args) {
+        int id = number(arg);
+        if (id < 0) {
+          return -1;
+        }
+        builder.append(',').append(id);
+        size += sizes.get(id);
+        pure &= pures.get(id);
+      }
+      key = builder.toString();
+      pure &= state.isPureForeign(call.name.lexeme);
+    } else {
+      return -1;
+    }
+    Integer id = keys.get(key);
+    if (id == null) {
+      id = nodes.size();
+      keys.put(key, id);
+      nodes.add(expr);
+      sizes.add(size);
+      pures.add(pure);
+    }
+    ids.put(expr, id);
+    return id;
+  }
+
+  private void count(Expression expr) {
+    counts[ids.get(expr)]++;
+    for (Expression child : children(expr)) {
+      count(child);
+    }
+  }
+  // Walks the scope in evaluation order. A function is looked up before
+  // its arguments are evaluated; operators fail after their operands.
+  private void order(Expression expr) {
+    expr = unwrap(expr);
+    int id = ids.get(expr);
+    if (!seen[id]) {
+      seen[id] = true;
+      hoistable[id] = !risky || !mayFail(expr);
+    }
+    if (expr instanceof Call) {
+      risky = true;
+    }
+    for (Expression child : children(expr)) {
+      order(child);
+    }
+    if (expr instanceof Variable) {
+      risky |= ((Variable) expr).slot < 0;
+    } else if (expr instanceof Binary) {
+      risky |= mayFailItself((Binary) expr);
+    }
+  }
+  // Globals may be undefined, and so may functions or their arity may be
+  // wrong; parameters and bindings always have a value.
+  private static boolean mayFail(Expression expr) {
+    expr = unwrap(expr);
+    if (expr instanceof Variable) {
+      return ((Variable) expr).slot < 0;
+    } else if (expr instanceof Call) {
+      return true;
+    } else if (expr instanceof Binary && mayFailItself((Binary) expr)) {
+      return true;
+    }
+    for (Expression child : children(expr)) {
+      if (mayFail(child)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  private static boolean mayFailItself(Binary expr) {
+    if (expr.operator.type != SLASH && expr.operator.type != MOD) {
+      return false;
+    }
+    Expression right = unwrap(expr.right);
+    return !(right instanceof Literal) || ((Literal) right).value == 0;
+  }
+
+  private static Expression unwrap(Expression expr) {
+    while (expr instanceof Group) {
+      expr = ((Group) expr).expression;
+    }
+    return expr;
+  }
+
+  private void discount(Expression expr, int by, boolean root) {
+    if (!root) {
+      counts[ids.get(expr)] -= by;
+    }
+    for (Expression child : children(expr)) {
+      discount(child, by, false);
+    }
+  }
+  private static ArrayList<Expression> children(Expression expr) {
+    ArrayList<Expression> children = new ArrayList<>(2);
+    if (expr instanceof Group) {
+      children.addAll(children(((Group) expr).expression));
+    } else if (expr instanceof Unary) {
+      children.add(((Unary) expr).operand);
+    } else if (expr instanceof Binary) {
+      children.add(((Binary) expr).left);
+      children.add(((Binary) expr).right);
+    } else if (expr instanceof Call) {
+      children.addAll(((Call) expr).args);
+    }
+    return children;
+  }
+
+  private Expression rewrite(Expression expr) {
+    int id = ids.get(expr);
+    if (!shared[id]) {
+      return rebuild(expr);
+    }
+    if (temps[id] == null) {
+      // Bindings used by this one are appended first and so end up outside it.
+      Expression value = rebuild(expr);
+      int slot = base + bindings.size();
+      Token name = new Token(IDENTIFIER, "$" + slot);
+      bindings.add(new Let(name, slot, value, null));
+      temps[id] = new Variable(name, slot);
+    }
+    return temps[id];
+  }
+  private Expression rebuild(Expression expr) {
+    if (expr instanceof Group) {
+      return rewrite(((Group) expr).expression);
+    } else if (expr instanceof Unary) {
+      Unary unary = (Unary) expr;
+      Expression operand = rewrite(unary.operand);
+      return operand == unary.operand ? unary : new Unary(unary.operator, operand);
+    } else if (expr instanceof Binary) {
+      Binary binary = (Binary) expr;
+      Expression left = rewrite(binary.left);
+      Expression right = rewrite(binary.right);
+      if (left == binary.left && right == binary.right) {
+        return binary;
+      }
+      return new Binary(left, binary.operator, right);
+    } else if (expr instanceof Call) {
+      Call call = (Call) expr;
+      ArrayList<Expression> args = new ArrayList<>(call.args.size());
+      boolean changed = false;
+      for (Expression arg : call.args) {
+        Expression rewritten = rewrite(arg);
+        changed |= rewritten != arg;
+        args.add(rewritten);
+      }
+      return changed ? new Call(call.name, args) : call;
+    }
+    return expr;
+  }
+}
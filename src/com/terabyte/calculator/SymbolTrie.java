@@ -0,0 +1,171 @@
+package com.terabyte.calculator;
+
+// A persistent map from symbols to values, each either a double or a
+// function. It is an array-mapped trie: inner nodes have 32 children, picked
+// by successive 5-bit groups of the symbol, and leaves hold 32 entries.
+// An update copies the path down to its leaf and shares everything else,
+// so every earlier version of the map stays valid.
+//
+// Nodes made under an edit token are updated in place by the holder of
+// that token, which saves copying the path on every change. A holder that
+// shares its map must drop the token first; the nodes made under it are
+// then never written to again, and are safe to read from any thread.
+final class SymbolTrie {
+  static final SymbolTrie EMPTY = new SymbolTrie(null, 0);
+
+  private static final int BITS = 5;
+  private static final int WIDTH = 1 << BITS;
+  private static final int MASK = WIDTH - 1;
+
+  private static final class Inner {
+    final Object edit;
+    final Object[] children;
+
+    Inner(Object edit, Object[] children) {
+      this.edit = edit;
+      this.children = children;
+    }
+    Inner editable(Object edit) {
+      return edit != null && edit == this.edit ? this : new Inner(edit, children.clone());
+    }
+  }
+
+  private static final class Leaf {
+    final Object edit;
+    // Entry i holds a double when bit i of doubles is set, and a function
+    // when functions[i] is not null.
+    int doubles;
+    final double[] numbers;
+    final Object[] functions;
+
+    Leaf(Object edit, int doubles, double[] numbers, Object[] functions) {
+      this.edit = edit;
+      this.doubles = doubles;
+      this.numbers = numbers;
+      this.functions = functions;
+    }
+    Leaf editable(Object edit) {
+      return edit != null && edit == this.edit
+          ? this : new Leaf(edit, doubles, numbers.clone(), functions.clone());
+    }
+    int present() {
+      int bits = doubles;
+      for (int i = 0; i < WIDTH; i++) {
+        if (functions[i] != null) {
+          bits |= 1 << i;
+        }
+      }
+      return bits;
+    }
+  }
+
+  private final Object root;
+  // Bits below the ones the root indexes; 0 when the root is a leaf.
+  private final int shift;
+
+  private SymbolTrie(Object root, int shift) {
+    this.root = root;
+    this.shift = shift;
+  }
+
+  private Leaf leaf(int symbol) {
+    if (root == null || (shift + BITS < 32 && symbol >>> (shift + BITS) != 0)) {
+      return null;
+    }
+    Object node = root;
+    for (int level = shift; level > 0 && node != null; level -= BITS) {
+      node = ((Inner) node).children[(symbol >>> level) & MASK];
+    }
+    return (Leaf) node;
+  }
+
+  boolean hasDouble(int symbol) {
+    Leaf leaf = leaf(symbol);
+    return leaf != null && (leaf.doubles & (1 << symbol)) != 0;
+  }
+  double getDouble(int symbol) {
+    return leaf(symbol).numbers[symbol & MASK];
+  }
+  // Returns the function bound to symbol, or null.
+  Object getFunction(int symbol) {
+    Leaf leaf = leaf(symbol);
+    return leaf == null ? null : leaf.functions[symbol & MASK];
+  }
+
+  SymbolTrie putDouble(Object edit, int symbol, double value) {
+    return update(edit, symbol, true, value, null);
+  }
+  SymbolTrie putFunction(Object edit, int symbol, Object function) {
+    return update(edit, symbol, false, 0, function);
+  }
+  SymbolTrie remove(Object edit, int symbol) {
+    if (leaf(symbol) == null) {
+      return this;
+    }
+    return update(edit, symbol, false, 0, null);
+  }
+
+  private SymbolTrie update(Object edit, int symbol, boolean isDouble, double number, Object function) {
+    Object node = root;
+    int level = shift;
+    if (node == null) {
+      level = 0;
+    }
+    // Grow the trie upwards until symbol fits under the root.
+    while (level + BITS < 32 && symbol >>> (level + BITS) != 0) {
+      if (node != null) {
+        Object[] children = new Object[WIDTH];
+        children[0] = node;
+        node = new Inner(edit, children);
+      }
+      level += BITS;
+    }
+    Object updated = update(node, level, edit, symbol, isDouble, number, function);
+    return updated == root && level == shift ? this : new SymbolTrie(updated, level);
+  }
+  private static Object update(Object node, int level, Object edit, int symbol,
+      boolean isDouble, double number, Object function) {
+    if (level == 0) {
+      Leaf leaf = node == null
+          ? new Leaf(edit, 0, new double[WIDTH], new Object[WIDTH]) : ((Leaf) node).editable(edit);
+      int i = symbol & MASK;
+      if (isDouble) {
+        leaf.doubles |= 1 << i;
+        leaf.numbers[i] = number;
+      } else {
+        leaf.doubles &= ~(1 << i);
+      }
+      leaf.functions[i] = function;
+      return leaf;
+    }
+    Inner inner = node == null ? new Inner(edit, new Object[WIDTH]) : ((Inner) node).editable(edit);
+    int i = (symbol >>> level) & MASK;
+    inner.children[i] = update(inner.children[i], level - BITS, edit, symbol, isDouble, number, function);
+    return inner;
+  }
+
+  // Returns the first symbol at or after from with an entry, or -1.
+  int next(int from) {
+    return root == null ? -1 : next(root, shift, 0, Math.max(from, 0));
+  }
+  private static int next(Object node, int level, int base, int from) {
+    if (level == 0) {
+      int bits = ((Leaf) node).present();
+      if (from > base) {
+        bits &= -1 << (from - base);
+      }
+      return bits == 0 ? -1 : base + Integer.numberOfTrailingZeros(bits);
+    }
+    Object[] children = ((Inner) node).children;
+    int first = from > base ? (from - base) >>> level : 0;
+    for (int i = first; i < WIDTH; i++) {
+      if (children[i] != null) {
+        int found = next(children[i], level - BITS, base + (i << level), from);
+        if (found >= 0) {
+          return found;
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,50 @@
+package com.terabyte.calculator;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Process-wide interning of names into dense ids, so that environments
+// and trees refer to names by int instead of by String. Ids are never
+// reused: the table holds every name ever defined or bound, so nothing
+// sizes its storage by the number of symbols. Names that are only read,
+// such as those of variables in parsed trees, are looked up instead and
+// stay out of the table until they are defined.
+public final class Symbols {
+  private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  private static volatile String[] names = new String[64];
+  private static int count = 0;
+
+  private Symbols() {}
+
+  public static int intern(String name) {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    synchronized (Symbols.class) {
+      id = ids.get(name);
+      if (id != null) {
+        return id;
+      }
+      String[] table = names;
+      if (count == table.length) {
+        table = Arrays.copyOf(table, count * 2);
+      }
+      table[count] = name;
+      names = table;
+      ids.put(name, count);
+      return count++;
+    }
+  }
+  public static int lookup(String name) {
+    Integer id = ids.get(name);
+    return id == null ? -1 : id;
+  }
+  // The number of names interned so far.
+  public static int size() {
+    return ids.size();
+  }
+  public static String name(int id) {
+    return names[id];
+  }
+}
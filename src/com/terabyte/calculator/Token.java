@@ -1,5 +1,7 @@
 package com.terabyte.calculator;
 
+import static com.terabyte.calculator.Token.Type.*;
+
 public class Token {
 	public static enum Type {
 	  NUMBER,
@@ -21,6 +23,23 @@ public class Token {
 	public final Type type;
 	public final String lexeme;
 	
+	// Tokens are immutable, so every operator of a type can share one.
+	private static final Token[] operators = new Token[Type.values().length];
+	
+	static {
+	  String[] lexemes = { "+", "-", "*", "/", "^", "%", "=", "(", ")", ",", "mod" };
+	  Type[] types = { PLUS, MINUS, ASTERISK, SLASH, CARET, MODULO, EQUAL, LEFT_PAREN, RIGHT_PAREN, COMMA, MOD };
+	  for (int i = 0; i < types.length; i++) {
+	    operators[types[i].ordinal()] = new Token(types[i], lexemes[i]);
+	  }
+	}
+	
+	// Returns the shared token for an operator or punctuation type, or null
+	// for numbers and identifiers.
+	public static Token of(Type type) {
+	  return operators[type.ordinal()];
+	}
+	
 	public Token(Type type, String lexeme) {
 	  this.type = type;
 	  this.lexeme = lexeme;
@@ -1,64 +1,64 @@
 package com.terabyte.calculator;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import com.terabyte.calculator.Environment.Checkpoint;
+import com.terabyte.calculator.Environment.DumpError;
+import com.terabyte.calculator.Environment.LoadError;
+import com.terabyte.calculator.Environment.NameError;
 import com.terabyte.calculator.Expression.*;
 import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
+import com.terabyte.calculator.ForeignFunction.Primitive1;
+import com.terabyte.calculator.ForeignFunction.Primitive2;
 import static com.terabyte.calculator.Token.Type.*;
 
 public class TreeInterpreter implements ExpressionVisitor<Double> {
-	private final Parser parser = new Parser();
-	private Environment environment = new Environment();
-	private void pushEnv(ArrayList<Token> predefs, ArrayList<Expression> args) {
-	  Environment env = new Environment(environment);
-	  environment = env;
-	  if (predefs.size() != args.size()) {
-	    throw new ValueError("Invalid arity for function call.");
+	// Foreign functions added by the embedder, on top of the prelude. They
+	// are copied by fork, and kept by load and rollback.
+	private final Environment builtins;
+	private final Environment globals;
+	// Parameters and bindings live in frames on one reusable stack, and are
+	// addressed by the slots assigned by the Resolver; every other name is
+	// a global. A call's frame starts at fp, and top is the first free slot.
+	private double[] stack = new double[64];
+	private int fp = 0;
+	private int top = 0;
+	private Memoizer memoizer = null;
+	private Profiler profiler = null;
+	// Every node is evaluated through visitor: this interpreter, or the
+	// profiler wrapped around it.
+	private ExpressionVisitor<Double> visitor = this;
+	private static final String DUMP_FILE = "calc_dump.bin";
+	private void reserve(int size) {
+	  if (size > stack.length) {
+	    stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
 	  }
-	  for (int i = 0; i < predefs.size(); i++) {
-	    Token param = predefs.get(i);
-	    Double values = args.get(i).accept(this);
-	    environment.defineDouble(param.lexeme, values);
-	  }
-	}
-	private void popEnv() {
-	  assert environment.enclosing != null;
-	  environment = environment.enclosing;
 	}
 	
-	private void addForeign(String name, ForeignFunction ffn) {
-	  environment.defineForeign(name, ffn);
+	// Built-in functions and constants, built once and shared by every
+	// interpreter. Each interpreter keeps its own built-ins and definitions
+	// in overlays on top of it, which can shadow but never modify the
+	// prelude.
+	private static final Environment PRELUDE = prelude();
+	
+	private static void addForeign(Environment env, String name, ForeignFunction ffn) {
+	  env.defineForeign(name, ffn);
 	}
-	private void defineFunction(String def, String expr) {
-	  this.evaluate(parser.parse(String.format("%s=%s", def, expr)));
+	private static void defineFunction(Environment env, Parser parser, String def, String expr) {
+	  Function fn = (Function) parser.parse(String.format("%s=%s", def, expr));
+	  env.defineFunction(fn.name.lexeme, fn);
 	}
 	
-	public TreeInterpreter() {
-	  addForeign("dump_env", new ForeignFunction(0) {
+	private static Environment prelude() {
+	  Environment environment = new Environment();
+	  addForeign(environment, "dump_env", new ForeignFunction(0) {
 	  	@Override
 	  	public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-	  		// Dump environment to calc_dump.txt
-	  		StringBuilder builder = new StringBuilder().append("{\n");
-	  		
-	  		for (var ent : state.environment.getMap().entrySet()) {
-	  		  builder.append(String.format("  \"%s\": ", ent.getKey()));
-	  		  Object obj = ent.getValue();
-	  		  if (obj instanceof Function) {
-	  		    builder.append(new ExpressionPrinter().getString((Function) obj));
-	  		  } else if (obj instanceof ForeignFunction) {
-	  		    builder.append("<internal function>");
-	  		  } else {
-	  		    builder.append(String.format("%g", (Double) obj));
-	  		  }
-	  		  builder.append(",\n");
-	  		}
-	  		
-	  		builder.append("}\n");
-	  		byte[] x = builder.toString().getBytes();
 	  		try {
-	  		  Files.write(Paths.get("calc_dump.txt"), x);
+	  		  state.save(Paths.get(DUMP_FILE));
 	  		} catch (IOException err) {
 					throw new DumpError();
 	  		}
@@ -66,110 +66,165 @@ public class TreeInterpreter implements ExpressionVisitor<Double> {
 	  	}    
 	  });
 	  
-	  addForeign("exit", new ForeignFunction(0) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	System.exit(0);
-		  	return 0.0;
-	  	}    
-	  });
-	  
-	  addForeign("abs", new ForeignFunction(1) {
+	  addForeign(environment, "load_env", new ForeignFunction(0) {
 	  	@Override
 	  	public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-			  return Math.abs(args.get(0));
-	  	}  
-	  });
-	  
-	  addForeign("sin", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.sin(args.get(0));
-	  	}    
-	  });
-	  
-	  addForeign("cos", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.cos(args.get(0));
-	  	}    
-	  });
-	  
-	  addForeign("tan", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.tan(args.get(0));
-	  	}    
-	  });
-	  
-	  addForeign("asin", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.asin(args.get(0));
-	  	}    
-	  });
-	  
-	  addForeign("acos", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.acos(args.get(0));
-	  	}    
-	  });
-	  
-	  addForeign("atan", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.atan(args.get(0));
-	  	}    
-	  });
-	  
-	  addForeign("sinh", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.sinh(args.get(0));
-	  	}    
-	  });
-	  
-	  addForeign("cosh", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.cosh(args.get(0));
+	  		try {
+	  		  state.load(Paths.get(DUMP_FILE));
+	  		} catch (IOException err) {
+	  		  throw new LoadError("Cannot read " + DUMP_FILE + ".");
+	  		}
+	  		return null;
 	  	}    
 	  });
 	  
-	  addForeign("tanh", new ForeignFunction(1) {
+	  addForeign(environment, "exit", new ForeignFunction(0) {
 	  	@Override
 		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.tanh(args.get(0));
+		  	System.exit(0);
+		  	return 0.0;
 	  	}    
 	  });
 	  
-	  addForeign("ln", new ForeignFunction(1) {
-	  	@Override
-		  public Double execute(TreeInterpreter state, ArrayList<Double> args) {
-		  	return Math.log(args.get(0));
-	  	}    
-	  });
+	  // The pure built-ins are primitive, so that engines call them directly.
+	  addForeign(environment, "abs", ForeignFunction.of(Math::abs, true));
+	  addForeign(environment, "sin", ForeignFunction.of(Math::sin, true));
+	  addForeign(environment, "cos", ForeignFunction.of(Math::cos, true));
+	  addForeign(environment, "tan", ForeignFunction.of(Math::tan, true));
+	  addForeign(environment, "asin", ForeignFunction.of(Math::asin, true));
+	  addForeign(environment, "acos", ForeignFunction.of(Math::acos, true));
+	  addForeign(environment, "atan", ForeignFunction.of(Math::atan, true));
+	  addForeign(environment, "sinh", ForeignFunction.of(Math::sinh, true));
+	  addForeign(environment, "cosh", ForeignFunction.of(Math::cosh, true));
+	  addForeign(environment, "tanh", ForeignFunction.of(Math::tanh, true));
+	  addForeign(environment, "ln", ForeignFunction.of(Math::log, true));
+	  addForeign(environment, "sqrt", ForeignFunction.of(Math::sqrt, true));
 
-	  defineFunction("log(base, x)", "ln(x)/ln(base)");
-	  defineFunction("sqrt(x)", "root(x, 2)");
-	  defineFunction("root(x, r)", "x^(1/r)");
+	  Parser parser = new Parser();
+	  defineFunction(environment, parser, "log(base, x)", "ln(x)/ln(base)");
+	  defineFunction(environment, parser, "root(x, r)", "x^(1/r)");
 	  environment.defineDouble("π", Math.PI);
 		environment.defineDouble("pi", Math.PI);
 	  environment.defineDouble("e", Math.E);
+	  environment.freeze();
+	  return environment;
+	}
+	
+	public TreeInterpreter() {
+	  this(new Environment(PRELUDE));
+	}
+	private TreeInterpreter(Environment builtins) {
+	  this(builtins, new Environment(builtins));
+	}
+	private TreeInterpreter(Environment builtins, Environment globals) {
+	  this.builtins = builtins;
+	  this.globals = globals;
+	}
+	
+	Environment getEnvironment() {
+	  return globals;
+	}
+	// Off by default: memoized results cost memory and only pay off for
+	// functions called repeatedly with the same arguments.
+	public void setMemoization(boolean enabled) {
+	  memoizer = enabled ? new Memoizer() : null;
+	}
+	// Off by default, when it costs nothing but the field read above.
+	public void setProfiling(boolean enabled) {
+	  profiler = enabled ? new Profiler(this) : null;
+	  visitor = enabled ? profiler : this;
+	}
+	public Profiler getProfiler() {
+	  return profiler;
+	}
+	// Adds a built-in to this interpreter, shadowing any of the prelude.
+	// Variables and user functions of the same name shadow it in turn.
+	public void defineForeign(String name, ForeignFunction fn) {
+	  builtins.defineForeign(name, fn);
+	  globals.enclosingChanged(name);
+	}
+	// Forks and rollbacks change the variables without going through
+	// assignments, so memoized results are dropped rather than updated.
+	// A fork profiles on its own, starting from nothing.
+	public TreeInterpreter fork() {
+	  Environment copied = builtins.fork();
+	  TreeInterpreter copy = new TreeInterpreter(copied, globals.fork(copied));
+	  copy.setMemoization(memoizer != null);
+	  copy.setProfiling(profiler != null);
+	  return copy;
+	}
+	public Checkpoint snapshot() {
+	  return globals.snapshot();
+	}
+	public void rollback(Checkpoint checkpoint) {
+	  globals.rollback(checkpoint);
+	  if (memoizer != null) {
+	    memoizer = new Memoizer();
+	  }
+	}
+	// Writes the variables and user functions to a binary snapshot.
+	public void save(Path path) throws IOException {
+	  Snapshot.write(globals, path);
+	}
+	// Replaces the variables and user functions with those of a snapshot.
+	// Built-ins are kept; nothing changes if the snapshot is invalid.
+	public void load(Path path) throws IOException {
+	  Snapshot snapshot = Snapshot.read(path);
+	  globals.clear();
+	  snapshot.restore(globals);
+	  if (memoizer != null) {
+	    memoizer = new Memoizer();
+	  }
+	}
+	// Sets or, given null, removes a global variable. Memoized results are
+	// dropped first, since listeners may evaluate calls as it is set.
+	void assign(String name, Double value) {
+	  if (memoizer != null) {
+	    memoizer.assigned(name);
+	  }
+	  globals.defineDouble(name, value);
+	}
+	boolean isPureForeign(String name) {
+	  Object func;
+	  try {
+	    func = globals.getFunction(name);
+	  } catch (NameError err) {
+	    return false;
+	  }
+	  return func instanceof ForeignFunction && ((ForeignFunction) func).isPure();
 	}
 	
 	public Double evaluate(Expression expr) {
 	  if (expr == null) {
 	    return null;
 	  }
+	  Events.Evaluate event = new Events.Evaluate();
+	  event.begin();
 	  Double result;
-	  result = expr.accept(this);
+	  try {
+	    result = value(expr);
+	  } finally {
+	    event.commit();
+	  }
 	  if (result != null) {
-	    environment.defineDouble("R", result);
+	    assign("R", result);
 	  }
 	  return result;
 	}
+	// Evaluates expr without setting R. Listeners may evaluate while an
+	// assignment is made, so a nested evaluation gets a frame above the
+	// current one.
+	Double value(Expression expr) {
+	  int callerFp = fp;
+	  int callerTop = top;
+	  fp = top;
+	  try {
+	    return expr.accept(visitor);
+	  } finally {
+	    fp = callerFp;
+	    top = callerTop;
+	  }
+	}
 	
 	private static <T> void assertNotNull(T obj) {
 	  if (obj == null) {
@@ -180,7 +235,7 @@ public class TreeInterpreter implements ExpressionVisitor<Double> {
 	public static class ValueError extends RuntimeException {
 	  public final String what;
 	  public ValueError(String err) {
-	    super("Value Error");
+	    super("Value Error", null, false, false);
 	    what = err;
 	  }
 	}
@@ -188,12 +243,12 @@ public class TreeInterpreter implements ExpressionVisitor<Double> {
 	@Override
 	public Double visit(Literal expr) {
 		assert expr.literal.type == NUMBER;
-		return Double.parseDouble(expr.literal.lexeme);
+		return expr.value;
 	}
 
 	@Override
 	public Double visit(Unary expr) {
-		var res = expr.operand.accept(this);
+		var res = expr.operand.accept(visitor);
 		assertNotNull(res);
 		switch (expr.operator.type) {
 		  case MINUS:
@@ -206,8 +261,8 @@ public class TreeInterpreter implements ExpressionVisitor<Double> {
 
 	@Override
 	public Double visit(Binary expr) {
-		Double left = expr.left.accept(this);
-		Double right = expr.right.accept(this);
+		Double left = expr.left.accept(visitor);
+		Double right = expr.right.accept(visitor);
 		assertNotNull(left);
 		assertNotNull(right);
 		switch (expr.operator.type) {
@@ -235,46 +290,87 @@ public class TreeInterpreter implements ExpressionVisitor<Double> {
 
 	@Override
 	public Double visit(Group expr) {
-		return expr.expression.accept(this);
+		return expr.expression.accept(visitor);
 	}
 
 	@Override
 	public Double visit(Variable expr) {
-		return environment.getDouble(expr.name.lexeme);
+		if (expr.slot >= 0) {
+		  return stack[fp + expr.slot];
+		}
+		return globals.getDouble(expr);
 	}
 
 	@Override
 	public Double visit(Assignment expr) {
-		Double value = expr.value.accept(this);
+		Double value = expr.value.accept(visitor);
 		assertNotNull(value);
-		environment.defineDouble(expr.target.lexeme, value);
+		// Only statements assign, so the target is always a global.
+		assign(expr.target.lexeme, value);
 		return null;
 	}
 
 	@Override
 	public Double visit(Function expr) {
-		environment.defineFunction(expr.name.lexeme, expr);
+		globals.defineFunction(expr.name.lexeme, expr);
 		return null;
 	}
 
 	@Override
 	public Double visit(Call expr) {
-		Object func = environment.getFunction(expr.name.lexeme);
+		Object func = globals.getFunction(expr.name.lexeme);
 		Double n;
 		if (func instanceof Function) {
 		  Function fn = (Function) func;
-		  pushEnv(fn.params, expr.args);
-		  n = fn.expression.accept(this);
-		  popEnv();
+		  int arity = expr.args.size();
+		  if (fn.params.size() != arity) {
+		    throw new ValueError("Invalid arity for function call.");
+		  }
+		  // Arguments are evaluated in the caller's frame, into the slots
+		  // reserved above it for the callee.
+		  int base = top;
+		  int caller = fp;
+		  reserve(base + arity);
+		  top = base + arity;
+		  try {
+		    for (int i = 0; i < arity; i++) {
+		      Double value = expr.args.get(i).accept(visitor);
+		      assertNotNull(value);
+		      stack[base + i] = value;
+		    }
+		    fp = base;
+		    Memoizer.Table table = memoizer == null ? null : memoizer.tableFor(fn, globals);
+		    if (table != null) {
+		      n = table.call(visitor, fn.expression, stack, fp, globals);
+		    } else {
+		      n = fn.expression.accept(visitor);
+		    }
+		  } finally {
+		    // Errors raised inside the call must not leave its frame behind.
+		    fp = caller;
+		    top = base;
+		  }
+		} else if (func instanceof Primitive1 && expr.args.size() == 1) {
+		  Double x = expr.args.get(0).accept(visitor);
+		  assertNotNull(x);
+		  n = ((Primitive1) func).call(x);
+		} else if (func instanceof Primitive2 && expr.args.size() == 2) {
+		  Double x = expr.args.get(0).accept(visitor);
+		  Double y = expr.args.get(1).accept(visitor);
+		  assertNotNull(x);
+		  assertNotNull(y);
+		  n = ((Primitive2) func).call(x, y);
 		} else if (func instanceof ForeignFunction) {
 		  ArrayList<Double> values = new ArrayList<>();
 		  for (Expression value : expr.args) {
-		    values.add(value.accept(this));
+		    values.add(value.accept(visitor));
 		  }
 		  ForeignFunction fn = (ForeignFunction) func;
 		  fn.arityCheck(expr.args.size());
 		  try {
 		    n = fn.execute(this, values);
+		  } catch (DumpError | LoadError err) {
+		    throw err;
 		  } catch (Throwable err) {
 		    throw new BadFFI_Call("Something went wrong.");
 		  }
@@ -284,4 +380,17 @@ public class TreeInterpreter implements ExpressionVisitor<Double> {
 		
 		return n;
 	}
+
+	@Override
+	public Double visit(Let expr) {
+		Double value = expr.value.accept(visitor);
+		assertNotNull(value);
+		int slot = fp + expr.slot;
+		if (slot >= top) {
+		  reserve(slot + 1);
+		  top = slot + 1;
+		}
+		stack[slot] = value;
+		return expr.body.accept(visitor);
+	}
 }
\ No newline at end of file
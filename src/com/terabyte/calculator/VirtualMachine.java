@@ -0,0 +1,249 @@
+package com.terabyte.calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.terabyte.calculator.Expression.*;
+import com.terabyte.calculator.ForeignFunction.BadFFI_Call;
+import com.terabyte.calculator.ForeignFunction.Primitive1;
+import com.terabyte.calculator.ForeignFunction.Primitive2;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+import static com.terabyte.calculator.Bytecode.*;
+
+// Runs Bytecode in a loop, without recursing on the Java stack. A frame
+// is a window on the operand stack: a call's arguments become the first
+// slots of the callee's frame, followed by its bindings and then its own
+// operands. The call stack holds the return address and caller's frame.
+//
+// Programs are kept for the last PROGRAMS trees evaluated, and dropped
+// when the functions they were compiled against change or a new name is
+// defined, since reads of names undefined at compile time always fail.
+public class VirtualMachine {
+  public static final int PROGRAMS = 256;
+  // Calls deeper than this end in a StackOverflowError, as they would in
+  // the tree-walking interpreters, only much later.
+  public static final int MAX_DEPTH = 1 << 18;
+
+  private final TreeInterpreter state;
+  private final Environment globals;
+  private final BytecodeCompiler compiler;
+  @SuppressWarnings("serial")
+  private final LinkedHashMap<Expression, Bytecode> programs = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Expression, Bytecode> eldest) {
+      return size() > PROGRAMS;
+    }
+  };
+  private long version;
+  private int symbols;
+  private double[] stack = new double[256];
+  private int[] calls = new int[64];
+
+  public VirtualMachine(TreeInterpreter state) {
+    this.state = state;
+    this.globals = state.getEnvironment();
+    this.compiler = new BytecodeCompiler(state);
+    this.version = globals.getVersion();
+  }
+
+  // Statements and empty input have no value and yield NaN.
+  public double evaluate(Expression expr) {
+    Double result = execute(expr);
+    return result == null ? Double.NaN : result;
+  }
+
+  // Evaluates as TreeInterpreter.evaluate does: statements, empty input
+  // and foreign functions called on their own that return nothing yield
+  // null.
+  Double execute(Expression expr) {
+    if (expr == null) {
+      return null;
+    }
+    if (expr instanceof Function) {
+      globals.defineFunction(((Function) expr).name.lexeme, (Function) expr);
+      return null;
+    }
+    if (expr instanceof Call && DoubleInterpreter.mayReturnNothing(globals, (Call) expr)) {
+      return state.evaluate(expr);
+    }
+    Events.Evaluate event = new Events.Evaluate();
+    event.begin();
+    double result;
+    try {
+      result = run(program(expr));
+    } finally {
+      event.commit();
+    }
+    if (expr instanceof Assignment) {
+      return null;
+    }
+    state.assign("R", result);
+    return result;
+  }
+
+  Bytecode program(Expression expr) {
+    if (version != globals.getVersion() || symbols != Symbols.size()) {
+      programs.clear();
+      version = globals.getVersion();
+      symbols = Symbols.size();
+    }
+    Bytecode program = programs.get(expr);
+    if (program == null) {
+      program = compiler.compile(expr);
+      programs.put(expr, program);
+    }
+    return program;
+  }
+
+  public double run(Bytecode program) {
+    final int[] code = program.code;
+    final double[] constants = program.constants;
+    double[] stack = reserve(this.stack, program.frameSize + program.stackSize);
+    int[] calls = this.calls;
+    int pc = 0;
+    int fp = 0;
+    int sp = program.frameSize;
+    int depth = 0;
+    try {
+      while (true) {
+        switch (code[pc]) {
+          case CONST:
+            stack[sp++] = constants[code[pc + 1]];
+            pc += 2;
+            break;
+          case LOAD:
+            stack[sp++] = stack[fp + code[pc + 1]];
+            pc += 2;
+            break;
+          case STORE:
+            stack[fp + code[pc + 1]] = stack[--sp];
+            pc += 2;
+            break;
+          case GLOBAL:
+            stack[sp++] = globals.getDouble(code[pc + 1]);
+            pc += 2;
+            break;
+          case SET_GLOBAL:
+            state.assign(Symbols.name(code[pc + 1]), stack[sp - 1]);
+            pc += 2;
+            break;
+          case NEGATE:
+            stack[sp - 1] = -stack[sp - 1];
+            pc++;
+            break;
+          case PERCENT:
+            stack[sp - 1] = stack[sp - 1] / 100.0;
+            pc++;
+            break;
+          case ADD:
+            sp--;
+            stack[sp - 1] = stack[sp - 1] + stack[sp];
+            pc++;
+            break;
+          case SUBTRACT:
+            sp--;
+            stack[sp - 1] = stack[sp - 1] - stack[sp];
+            pc++;
+            break;
+          case MULTIPLY:
+            sp--;
+            stack[sp - 1] = stack[sp - 1] * stack[sp];
+            pc++;
+            break;
+          case DIVIDE:
+            sp--;
+            if (stack[sp] == 0) {
+              throw new ValueError("Division by zero is undefined.");
+            }
+            stack[sp - 1] = stack[sp - 1] / stack[sp];
+            pc++;
+            break;
+          case REMAINDER:
+            sp--;
+            if (stack[sp] == 0) {
+              throw new ValueError("Division by zero is undefined.");
+            }
+            stack[sp - 1] = stack[sp - 1] % stack[sp];
+            pc++;
+            break;
+          case POWER:
+            sp--;
+            stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+            pc++;
+            break;
+          case CALL: {
+            if (depth == MAX_DEPTH) {
+              throw new StackOverflowError();
+            }
+            if (2 * depth + 2 > calls.length) {
+              calls = this.calls = Arrays.copyOf(calls, calls.length * 2);
+            }
+            calls[2 * depth] = pc + 5;
+            calls[2 * depth + 1] = fp;
+            depth++;
+            fp = sp - code[pc + 2];
+            sp = fp + code[pc + 3];
+            stack = reserve(stack, fp + code[pc + 4]);
+            pc = code[pc + 1];
+            break;
+          }
+          case FOREIGN: {
+            int arity = code[pc + 2];
+            sp -= arity;
+            stack[sp] = callForeign(program.foreign[code[pc + 1]], stack, sp, arity);
+            sp++;
+            pc += 3;
+            break;
+          }
+          case RETURN: {
+            double result = stack[sp - 1];
+            if (depth == 0) {
+              return result;
+            }
+            depth--;
+            sp = fp;
+            stack[sp++] = result;
+            pc = calls[2 * depth];
+            fp = calls[2 * depth + 1];
+            break;
+          }
+          case FAIL:
+            throw program.failures[code[pc + 1]];
+          default: throw new AssertionError();
+        }
+      }
+    } finally {
+      this.stack = stack;
+    }
+  }
+
+  private double[] reserve(double[] stack, int size) {
+    if (size > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    }
+    return stack;
+  }
+
+  private double callForeign(ForeignFunction fn, double[] stack, int from, int arity) {
+    if (fn instanceof Primitive1) {
+      return ((Primitive1) fn).call(stack[from]);
+    } else if (fn instanceof Primitive2) {
+      return ((Primitive2) fn).call(stack[from], stack[from + 1]);
+    }
+    ArrayList<Double> values = new ArrayList<>(arity);
+    for (int i = 0; i < arity; i++) {
+      values.add(stack[from + i]);
+    }
+    Double n;
+    try {
+      n = fn.execute(state, values);
+    } catch (Throwable err) {
+      throw new BadFFI_Call("Something went wrong.");
+    }
+    if (n == null) {
+      throw new ValueError("Value cannot be null.");
+    }
+    return n;
+  }
+}
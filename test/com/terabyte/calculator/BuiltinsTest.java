@@ -0,0 +1,79 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BuiltinsTest {
+  @TempDir
+  Path dir;
+
+  private static Calculator withCbrt() {
+    Calculator calc = new Calculator();
+    calc.defineForeign("cbrt", ForeignFunction.of(Math::cbrt, true));
+    return calc;
+  }
+
+  @Test
+  public void builtinsAreNotDefinitions() {
+    Calculator calc = withCbrt();
+    assertEquals("2.00000", calc.evaluate("cbrt(8)"));
+    // Only R, the result.
+    assertEquals(1, calc.getEnvironmentSize());
+  }
+
+  @Test
+  public void survivesSaveAndLoad() throws IOException {
+    Calculator calc = withCbrt();
+    calc.evaluate("x = 27");
+    Path path = dir.resolve("state.bin");
+    calc.save(path);
+    calc.load(path);
+    assertEquals("3.00000", calc.evaluate("cbrt(x)"));
+  }
+
+  @Test
+  public void survivesRollbackToBeforeItWasDefined() {
+    Calculator calc = new Calculator();
+    Environment.Checkpoint checkpoint = calc.snapshot();
+    assertEquals("Undefined name 'cbrt'!", calc.evaluate("cbrt(64)"));
+    calc.defineForeign("cbrt", ForeignFunction.of(Math::cbrt, true));
+    calc.evaluate("y = 1");
+    calc.rollback(checkpoint);
+    assertEquals("4.00000", calc.evaluate("cbrt(64)"));
+    assertEquals("Undefined name 'y'!", calc.evaluate("y"));
+  }
+
+  @Test
+  public void forksCopyBuiltins() {
+    Calculator calc = withCbrt();
+    Calculator fork = calc.fork();
+    fork.defineForeign("twice", ForeignFunction.of(v -> 2 * v, true));
+    assertEquals("2.00000", fork.evaluate("cbrt(8)"));
+    assertEquals("6.00000", fork.evaluate("twice(3)"));
+    assertEquals("Undefined name 'twice'!", calc.evaluate("twice(3)"));
+  }
+
+  @Test
+  public void definitionsShadowBuiltins() {
+    Calculator calc = withCbrt();
+    calc.evaluate("cbrt(v) = v");
+    assertEquals("8.00000", calc.evaluate("cbrt(8)"));
+    Calculator other = withCbrt();
+    other.evaluate("sin = 2");
+    assertEquals("Value Error! Cannot call 'sin'", other.evaluate("sin(1)"));
+  }
+
+  @Test
+  public void replacingABuiltinReoptimizes() {
+    ExpressionCache cache = new ExpressionCache();
+    Calculator calc = new Calculator(cache);
+    assertEquals("0.841471", calc.evaluate("sin(1)"));
+    calc.defineForeign("sin", ForeignFunction.of(v -> v, true));
+    assertEquals("1.00000", calc.evaluate("sin(1)"));
+    assertEquals("0.841471", new Calculator(cache).evaluate("sin(1)"));
+  }
+}
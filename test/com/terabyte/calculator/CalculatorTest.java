@@ -0,0 +1,194 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class CalculatorTest {
+  @Test
+  public void evaluatesArithmetic() {
+    Calculator calc = new Calculator();
+    assertEquals("7.00000", calc.evaluate("1 + 2 * 3"));
+    assertEquals("9.00000", calc.evaluate("(1 + 2) * 3"));
+    assertEquals("-8.00000", calc.evaluate("-2^3"));
+    assertEquals("0.500000", calc.evaluate("50%"));
+    assertEquals("1.00000", calc.evaluate("7 mod 3"));
+    assertEquals("1.00000", calc.evaluate("sin(pi / 2)"));
+    assertEquals("", calc.evaluate(""));
+  }
+
+  @Test
+  public void definesVariablesAndFunctions() {
+    Calculator calc = new Calculator();
+    assertEquals("", calc.evaluate("x = 4"));
+    assertEquals("", calc.evaluate("sq(a) = a * a"));
+    assertEquals("16.0000", calc.evaluate("sq(x)"));
+    assertEquals("17.0000", calc.evaluate("R + 1"));
+    assertEquals("36.0000", calc.evaluate("(x + 2) * (x + 2)"));
+    assertEquals("3.00000", calc.evaluate("log(2, 8)"));
+  }
+
+  @Test
+  public void reportsErrors() {
+    Calculator calc = new Calculator();
+    assertEquals("Syntax Error!", calc.evaluate("1 +"));
+    assertEquals("Undefined name 'nope'!", calc.evaluate("nope + 1"));
+    assertEquals("Value Error! Division by zero is undefined.", calc.evaluate("1 / 0"));
+    assertEquals("Value Error! Invalid arity for function call.", calc.evaluate("log(1)"));
+    // Only ASCII digits make numbers.
+    assertEquals("Syntax Error!", calc.evaluate("\u0661\u0662 + 1"));
+    assertEquals("Syntax Error!", calc.evaluate("1\u0662"));
+    assertEquals(ErrorKind.LEXICAL, calc.tryEvaluate("\u0661\u0662 + 1").error);
+    assertFalse(calc.hasResult());
+    assertEquals("Recursion Error!", calc.evaluate("loop(n) = loop(n + 1)") + calc.evaluate("loop(0)"));
+  }
+
+  @Test
+  public void enginesGiveTheSameOutput() {
+    String[] script = {
+      "x = 3", "f(a) = a * x + g(a)", "g(b) = b^2 / 2", "f(2)", "R * 2", "f(x) % 10",
+      "(x + 1) * (x + 1)", "sin = 1", "sin(1)", "f(1, 2)", "g(0) / 0", "nothing()",
+      "nothing() + 1", "x = x + 1", "f(2)", "y",
+    };
+    String[] expected = null;
+    for (Calculator.Engine engine : Calculator.Engine.values()) {
+      Calculator calc = new Calculator();
+      calc.setEngine(engine);
+      calc.defineForeign("nothing", new ForeignFunction(0) {
+        @Override
+        public Double execute(TreeInterpreter state, ArrayList<Double> args) {
+          return null;
+        }
+      });
+      String[] outputs = new String[script.length];
+      for (int i = 0; i < script.length; i++) {
+        outputs[i] = calc.evaluate(script[i]);
+      }
+      if (expected == null) {
+        expected = outputs;
+      } else {
+        assertArrayEquals(expected, outputs, engine.toString());
+      }
+    }
+    assertEquals("", expected[11]);
+    assertEquals("Value Error! Value cannot be null.", expected[12]);
+  }
+
+  @Test
+  public void tryEvaluateTellsTheKindOfError() {
+    Calculator calc = new Calculator();
+    Result ok = calc.tryEvaluate("2 + 2");
+    assertEquals(4.0, ok.value);
+    assertFalse(ok.isError());
+    Result syntax = calc.tryEvaluate("2 + * 2");
+    assertEquals(ErrorKind.PARSE, syntax.error);
+    assertEquals(4, syntax.position);
+    assertEquals(ErrorKind.NAME, calc.tryEvaluate("q").error);
+    assertEquals(ErrorKind.VALUE, calc.tryEvaluate("1 mod 0").error);
+    assertFalse(calc.tryEvaluate("v = 1").hasValue());
+  }
+
+  @Test
+  public void bindingsFollowTheirInputs() {
+    Calculator calc = new Calculator();
+    calc.evaluate("price = 2");
+    calc.evaluate("count = 3");
+    assertEquals("6.00000", calc.bind("total = price * count"));
+    calc.evaluate("count = 5");
+    assertEquals("10.0000", calc.evaluate("total"));
+    calc.unbind("total");
+    calc.evaluate("count = 1");
+    assertEquals("10.0000", calc.evaluate("total"));
+    assertFalse(calc.isBound("total"));
+  }
+
+  @Test
+  public void bindingsAreEvaluatedInTheirOwnFrame() {
+    Calculator calc = new Calculator();
+    calc.evaluate("a = 1");
+    calc.evaluate("sq(v) = v * v");
+    assertEquals("4.00000", calc.bind("t = (a + 1) * (a + 1)"));
+    assertEquals("16.0000", calc.bind("u = sq(t)"));
+    calc.evaluate("a = (a + 1) * (a + 1)");
+    assertEquals("25.0000", calc.evaluate("t"));
+    assertEquals("625.000", calc.evaluate("u"));
+  }
+
+  @Test
+  public void forksAndRollbacksAreIndependent() {
+    Calculator calc = new Calculator();
+    calc.evaluate("a = 1");
+    Environment.Checkpoint checkpoint = calc.snapshot();
+    Calculator fork = calc.fork();
+    calc.evaluate("a = 2");
+    calc.evaluate("f(x) = x + a");
+    assertEquals("1.00000", fork.evaluate("a"));
+    assertEquals("Undefined name 'f'!", fork.evaluate("f(1)"));
+    assertEquals("3.00000", calc.evaluate("f(1)"));
+    calc.rollback(checkpoint);
+    assertEquals("1.00000", calc.evaluate("a"));
+    assertEquals("Undefined name 'f'!", calc.evaluate("f(1)"));
+  }
+
+  @Test
+  public void evaluatesColumns() {
+    Calculator calc = new Calculator();
+    calc.evaluate("k = 10");
+    calc.evaluate("scale(v) = v * k");
+    Map<String, double[]> columns = new HashMap<>();
+    columns.put("x", new double[] { 1, 2, 3 });
+    assertArrayEquals(new double[] { 11, 21, 31 }, calc.evaluate("scale(x) + 1", columns));
+    CompiledExpression compiled = calc.compile("scale(x) + 1");
+    assertEquals(31.0, compiled.evaluate(compiled.bind().set("x", 3)));
+  }
+
+  @Test
+  public void compiledExpressionsReportTheFirstError() {
+    Calculator calc = new Calculator();
+    calc.evaluate("h(a, b) = a + b");
+    calc.evaluate("late(x) = x/0 + missing(x)");
+    assertThrows(TreeInterpreter.ValueError.class, () -> calc.compile("1/0 + nofn(1)").evaluate());
+    assertThrows(Environment.NameError.class, () -> calc.compile("q + sin(1, 2)").evaluate());
+    assertThrows(TreeInterpreter.ValueError.class, () -> calc.compile("1/0 + h(1)").evaluate());
+    assertThrows(TreeInterpreter.ValueError.class, () -> calc.compile("late(1)").evaluate());
+    CompiledExpression compiled = calc.compile("1/0 + q");
+    assertThrows(TreeInterpreter.ValueError.class, () -> compiled.evaluate(compiled.bind()));
+    CompiledExpression unbound = calc.compile("q * 2 + r");
+    assertThrows(Environment.NameError.class, () -> unbound.evaluate(unbound.bind().set("q", 1)));
+    assertEquals(5.0, unbound.evaluate(unbound.bind().set("q", 1).set("r", 3)));
+  }
+
+  @Test
+  public void undefinedNamesAreNotInterned() {
+    for (Calculator.Engine engine : Calculator.Engine.values()) {
+      Calculator calc = new Calculator();
+      calc.setEngine(engine);
+      String name = "neverDefined" + engine;
+      assertEquals("Undefined name '" + name + "'!", calc.evaluate(name + " + 1"));
+      assertEquals(-1, Symbols.lookup(name));
+      calc.evaluate(name + " = 2");
+      assertEquals("3.00000", calc.evaluate(name + " + 1"));
+    }
+    Calculator calc = new Calculator();
+    CompiledExpression compiled = calc.compile("definedLater + 1");
+    assertThrows(Environment.NameError.class, compiled::evaluate);
+    assertEquals(-1, Symbols.lookup("definedLater"));
+    calc.evaluate("definedLater = 2");
+    assertEquals(3.0, compiled.evaluate());
+  }
+
+  @Test
+  public void sharedCacheServesEveryCalculator() {
+    ExpressionCache cache = new ExpressionCache();
+    Calculator first = new Calculator(cache);
+    Calculator second = new Calculator(cache);
+    first.evaluate("f(x) = x + 1");
+    second.evaluate("f(x) = x * 2");
+    assertEquals("4.00000", first.evaluate("f(3)"));
+    assertEquals("6.00000", second.evaluate("f(3)"));
+    assertEquals("4.00000", first.evaluate("f(3)"));
+  }
+}
@@ -0,0 +1,102 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ColumnFileEvaluatorTest {
+  @TempDir
+  Path dir;
+
+  private static double[] read(Path path) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+    double[] values = new double[bytes.remaining() / 8];
+    bytes.asDoubleBuffer().get(values);
+    return values;
+  }
+
+  @Test
+  public void csvColumnsAreFoundThroughFunctions() throws IOException {
+    Calculator calc = new Calculator();
+    calc.evaluate("rate = 2");
+    calc.evaluate("cost(q) = q * price * rate");
+    Path csv = dir.resolve("in.csv");
+    Files.writeString(csv, "price,ignored,quantity\n1.5,x,2\n\n3,y,4\n");
+    Path out = dir.resolve("out.bin");
+    assertEquals(2, calc.evaluateCsv("cost(quantity) + 1", csv, out));
+    assertArrayEquals(new double[] { 7, 25 }, read(out));
+  }
+
+  @Test
+  public void columnFilesAreReadAsDoubles() throws IOException {
+    Calculator calc = new Calculator();
+    Path x = dir.resolve("x.bin");
+    ByteBuffer bytes = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+    bytes.putDouble(1).putDouble(-2).putDouble(0.5);
+    Files.write(x, bytes.array());
+    Map<String, Path> columns = new HashMap<>();
+    columns.put("x", x);
+    Path out = dir.resolve("out.bin");
+    assertEquals(3, calc.evaluate("x * x + 1", columns, out));
+    assertArrayEquals(new double[] { 2, 5, 1.25 }, read(out));
+  }
+
+  @Test
+  public void outputMayReplaceAnInput() throws IOException {
+    Calculator calc = new Calculator();
+    Path x = dir.resolve("x.bin");
+    ByteBuffer bytes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+    bytes.putDouble(3).putDouble(4);
+    Files.write(x, bytes.array());
+    Map<String, Path> columns = new HashMap<>();
+    columns.put("x", x);
+    assertEquals(2, calc.evaluate("x + 1", columns, x));
+    assertArrayEquals(new double[] { 4, 5 }, read(x));
+    assertEquals(2, calc.evaluate("x * 2", columns, x));
+    assertArrayEquals(new double[] { 8, 10 }, read(x));
+    try (var files = Files.list(dir)) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  public void failedRunKeepsThePreviousOutput() throws IOException {
+    Calculator calc = new Calculator();
+    Path csv = dir.resolve("in.csv");
+    Files.writeString(csv, "x\n1\noops\n");
+    Path out = dir.resolve("out.bin");
+    Files.writeString(out, "old");
+    assertThrows(RuntimeException.class, () -> calc.evaluateCsv("x + 1", csv, out));
+    assertEquals("old", Files.readString(out));
+    try (var files = Files.list(dir)) {
+      assertEquals(2, files.count());
+    }
+  }
+
+  @Test
+  public void unreadColumnsAreOnlyMeasured() throws IOException {
+    Calculator calc = new Calculator();
+    Path x = dir.resolve("x.bin");
+    Path y = dir.resolve("y.bin");
+    ByteBuffer bytes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+    bytes.putDouble(1).putDouble(2);
+    Files.write(x, bytes.array());
+    Files.write(y, bytes.array());
+    Map<String, Path> columns = new HashMap<>();
+    columns.put("x", x);
+    columns.put("y", y);
+    Path out = dir.resolve("out.bin");
+    assertEquals(2, calc.evaluate("x * 10", columns, out));
+    assertArrayEquals(new double[] { 10, 20 }, read(out));
+    Files.write(y, new byte[24]);
+    assertThrows(TreeInterpreter.ValueError.class, () -> calc.evaluate("x * 10", columns, out));
+  }
+}
@@ -0,0 +1,63 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+
+public class DependencyGraphTest {
+  @Test
+  public void followsNamesReadByCalledFunctions() {
+    Calculator calc = new Calculator();
+    calc.evaluate("rate = 2");
+    calc.evaluate("cost(q) = q * rate");
+    calc.evaluate("n = 3");
+    assertEquals("6.00000", calc.bind("total = cost(n)"));
+    calc.evaluate("rate = 10");
+    assertEquals("30.0000", calc.evaluate("total"));
+  }
+
+  @Test
+  public void followsRedefinedFunctions() {
+    Calculator calc = new Calculator();
+    calc.evaluate("a = 1");
+    calc.evaluate("b = 5");
+    calc.evaluate("f(x) = x + a");
+    assertEquals("3.00000", calc.bind("t = f(2)"));
+    calc.evaluate("f(x) = x * b");
+    assertEquals("10.0000", calc.evaluate("t"));
+    calc.evaluate("b = 7");
+    assertEquals("14.0000", calc.evaluate("t"));
+  }
+
+  @Test
+  public void followsRedefinedForeignFunctions() {
+    Calculator calc = new Calculator();
+    calc.defineForeign("scale", new ForeignFunction(1) {
+      @Override
+      public Double execute(TreeInterpreter state, ArrayList<Double> args) {
+        return args.get(0) * 2;
+      }
+    });
+    assertEquals("6.00000", calc.bind("t = scale(3)"));
+    calc.defineForeign("scale", new ForeignFunction(1) {
+      @Override
+      public Double execute(TreeInterpreter state, ArrayList<Double> args) {
+        return args.get(0) * 10;
+      }
+    });
+    assertEquals("30.0000", calc.evaluate("t"));
+  }
+
+  @Test
+  public void chainsUpdateInOrder() {
+    Calculator calc = new Calculator();
+    calc.evaluate("x = 1");
+    calc.bind("y = x + 1");
+    calc.bind("z = y * x");
+    calc.evaluate("x = 3");
+    assertEquals("4.00000", calc.evaluate("y"));
+    assertEquals("12.0000", calc.evaluate("z"));
+    assertEquals("Value Error! Circular dependency.", calc.bind("x = z + 1"));
+  }
+}
@@ -0,0 +1,171 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+// Runs the same programs through every engine, which must agree on each
+// value, bit for bit, and on the kind of each error.
+public class EngineEquivalenceTest {
+  private static final String[] DEFINITIONS = {
+    "x = 1.5",
+    "y = -2",
+    "big = 10^400",
+    "f(x) = g(1)",
+    "g(y) = x + y",
+    "h(a, b) = (a + b) * (a + b) - a / b",
+    "k(n) = h(n, x) + h(x, n) mod 7 + n%",
+    "twice(a) = a + a",
+    "nest(a) = twice(twice(a)) + twice(a + 1)",
+    "shadow(x) = x * y",
+    "fact(n) = n",
+    "loop(n) = loop(n + 1)",
+    "cube(v) = v^3 - 3 * v^2 + v^0.5",
+    "late(x) = x/0 + missing(x)",
+  };
+
+  private static final String[] EXPRESSIONS = {
+    "1 + 2 * 3",
+    "x * y - x / y",
+    "f(5)",
+    "g(2)",
+    "h(2, 3)",
+    "h(x, y) + h(y, x)",
+    "k(4)",
+    "nest(x)",
+    "shadow(10)",
+    "(x + y) * (x + y) + sin(x + y) * cos(x + y)",
+    "cube(4) + cube(x)",
+    "-(big)^0.5",
+    "(-(0))^0.5",
+    "log(2, 1024) + root(27, 3)",
+    "50% + 7 mod 3 - -x",
+    "1 / (x - 1.5)",
+    "3 mod 0",
+    "undefined + 1",
+    "nothing(1)",
+    "h(1)",
+    "x(1)",
+    "loop(0)",
+    "sqrt(-1) + abs(y) + ln(0)",
+    // Two errors: the first one evaluation reaches is reported.
+    "1/0 + nofn(1)",
+    "q + sin(1, 2)",
+    "1/0 + h(1)",
+    "late(1)",
+    "sin(1, 1/0)",
+    "h(1/0)",
+    "q + x(1)",
+    "undefined + big(1)",
+    "1/0 + (q+1)*(q+1)",
+    "1/0 + sin(q)*sin(q)",
+    "q * (q+1)*(q+1) + 1/0",
+  };
+
+  private static Object outcome(java.util.function.Supplier<Double> run) {
+    try {
+      return Double.doubleToRawLongBits(run.get());
+    } catch (RuntimeException | StackOverflowError err) {
+      ErrorKind kind = ErrorKind.of(err);
+      if (kind == null) {
+        throw err;
+      }
+      return kind;
+    }
+  }
+
+  private static Map<String, Function<Expression, Object>> engines(TreeInterpreter interp) {
+    Map<String, Function<Expression, Object>> engines = new HashMap<>();
+    engines.put("tree", expr -> outcome(() -> interp.evaluate(expr)));
+    engines.put("double", expr -> outcome(() -> new DoubleInterpreter(interp).evaluate(expr)));
+    engines.put("compiled", expr -> outcome(() -> new ExpressionCompiler(interp).compile(expr).evaluate()));
+    engines.put("vm", expr -> outcome(() -> new VirtualMachine(interp).evaluate(expr)));
+    engines.put("batch", expr -> outcome(() -> {
+      Map<String, double[]> columns = new HashMap<>();
+      columns.put("unused", new double[1]);
+      return new BatchEvaluator(interp).evaluate(expr, columns)[0];
+    }));
+    engines.put("parallel", expr -> outcome(() -> {
+      Map<String, double[]> columns = new HashMap<>();
+      columns.put("unused", new double[1]);
+      return new ParallelEvaluator(interp).evaluate(expr, columns)[0];
+    }));
+    return engines;
+  }
+
+  private static List<Expression> program(TreeInterpreter interp, boolean optimize) {
+    Parser parser = new Parser();
+    Optimizer optimizer = new Optimizer(interp);
+    for (String definition : DEFINITIONS) {
+      interp.evaluate(parser.parse(definition));
+    }
+    List<Expression> trees = new ArrayList<>();
+    for (String input : EXPRESSIONS) {
+      Expression tree = parser.parse(input);
+      trees.add(optimize ? optimizer.optimize(tree) : tree);
+    }
+    return trees;
+  }
+
+  private static void check(TreeInterpreter interp, boolean optimize) {
+    List<Expression> trees = program(interp, optimize);
+    Map<String, Function<Expression, Object>> engines = engines(interp);
+    for (int i = 0; i < trees.size(); i++) {
+      Object expected = engines.get("tree").apply(trees.get(i));
+      for (Map.Entry<String, Function<Expression, Object>> engine : engines.entrySet()) {
+        assertEquals(expected, engine.getValue().apply(trees.get(i)),
+            engine.getKey() + ": " + EXPRESSIONS[i]);
+      }
+    }
+  }
+
+  @Test
+  public void parsedTreesAgree() {
+    check(new TreeInterpreter(), false);
+  }
+
+  @Test
+  public void optimizedTreesAgree() {
+    check(new TreeInterpreter(), true);
+  }
+
+  // Optimizing must not change a value or which error is reported.
+  @Test
+  public void optimizedTreesAgreeWithParsedOnes() {
+    TreeInterpreter interp = new TreeInterpreter();
+    List<Expression> parsed = program(interp, false);
+    Optimizer optimizer = new Optimizer(interp);
+    for (int i = 0; i < parsed.size(); i++) {
+      Expression tree = parsed.get(i);
+      assertEquals(outcome(() -> interp.evaluate(tree)),
+          outcome(() -> interp.evaluate(optimizer.optimize(tree))), EXPRESSIONS[i]);
+    }
+  }
+
+  @Test
+  public void memoizedAndProfiledTreesAgree() {
+    TreeInterpreter memoized = new TreeInterpreter();
+    memoized.setMemoization(true);
+    check(memoized, true);
+    TreeInterpreter profiled = new TreeInterpreter();
+    profiled.setProfiling(true);
+    check(profiled, true);
+  }
+
+  @Test
+  public void namesAreScopedLexically() {
+    Calculator calc = new Calculator();
+    calc.evaluate("f(x) = g(1)");
+    calc.evaluate("g(y) = x + y");
+    assertEquals("Undefined name 'x'!", calc.evaluate("f(5)"));
+    assertThrows(Environment.NameError.class, () -> calc.compile("f(5)").evaluate());
+    calc.evaluate("x = 10");
+    assertEquals("11.0000", calc.evaluate("f(5)"));
+    assertEquals(11.0, calc.compile("f(5)").evaluate());
+  }
+}
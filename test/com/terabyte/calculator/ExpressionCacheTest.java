@@ -0,0 +1,77 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import com.terabyte.calculator.ExpressionCache.Entry;
+
+public class ExpressionCacheTest {
+  @Test
+  public void evictsTheLeastRecentlyUsed() {
+    ExpressionCache cache = new ExpressionCache(2);
+    Entry entry = new Entry(null, null, 1);
+    cache.put("a", entry);
+    cache.put("b", entry);
+    assertSame(entry, cache.get("a"));
+    cache.put("c", entry);
+    assertNull(cache.get("b"));
+    assertSame(entry, cache.get("a"));
+    assertEquals(1, cache.evictions());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void keepsTheLatestVersions() {
+    Entry entry = null;
+    for (long version = 1; version <= 10; version++) {
+      entry = new Entry(null, null, version, entry);
+    }
+    entry = new Entry(null, null, 8, entry);
+    assertEquals(8, entry.version);
+    assertEquals(10, entry.older.version);
+    assertEquals(9, entry.older.older.version);
+    assertEquals(7, entry.older.older.older.version);
+    assertNull(entry.older.older.older.older);
+    assertNull(entry.find(6));
+  }
+
+  @Test
+  public void freshCalculatorsShareEntries() {
+    ExpressionCache cache = new ExpressionCache();
+    Calculator first = new Calculator(cache);
+    Calculator second = new Calculator(cache);
+    first.evaluate("sin(1) + 2");
+    Entry entry = cache.get("sin(1) + 2");
+    second.evaluate("sin(1) + 2");
+    first.fork().evaluate("sin(1) + 2");
+    assertSame(entry, cache.get("sin(1) + 2"));
+  }
+
+  @Test
+  public void calculatorsWithOtherFunctionsKeepTheirOwnEntries() {
+    ExpressionCache cache = new ExpressionCache();
+    Calculator first = new Calculator(cache);
+    Calculator second = new Calculator(cache);
+    first.evaluate("f(x) = x + 1");
+    second.evaluate("f(x) = x * 2");
+    assertEquals("4.00000", first.evaluate("f(3)"));
+    assertEquals("6.00000", second.evaluate("f(3)"));
+    Entry entry = cache.get("f(3)");
+    for (int i = 0; i < 3; i++) {
+      assertEquals("4.00000", first.evaluate("f(3)"));
+      assertEquals("6.00000", second.evaluate("f(3)"));
+    }
+    assertSame(entry, cache.get("f(3)"));
+  }
+
+  @Test
+  public void clearingFunctionsReturnsToThePreludeVersion() {
+    long fresh = new TreeInterpreter().getEnvironment().getVersion();
+    TreeInterpreter interp = new TreeInterpreter();
+    interp.evaluate(new Parser().parse("f(x) = x"));
+    assertNotEquals(fresh, interp.getEnvironment().getVersion());
+    interp.evaluate(new Parser().parse("y = 1"));
+    interp.getEnvironment().clear();
+    assertEquals(fresh, interp.getEnvironment().getVersion());
+  }
+}
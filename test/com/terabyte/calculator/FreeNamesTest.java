@@ -0,0 +1,44 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class FreeNamesTest {
+  private static Set<String> names(Set<Integer> symbols) {
+    LinkedHashSet<String> names = new LinkedHashSet<>();
+    for (int symbol : symbols) {
+      names.add(Symbols.name(symbol));
+    }
+    return names;
+  }
+
+  @Test
+  public void followsUserFunctions() {
+    TreeInterpreter interp = new TreeInterpreter();
+    Parser parser = new Parser();
+    interp.evaluate(parser.parse("f(a) = a * k + g(a)"));
+    interp.evaluate(parser.parse("g(b) = b + m + f(b) + sin(n)"));
+    LinkedHashSet<Integer> symbols = new LinkedHashSet<>();
+    assertTrue(FreeNames.collect(parser.parse("f(x) + x"), interp.getEnvironment(), false, symbols));
+    assertEquals(Set.of("x", "k", "m", "n"), names(symbols));
+
+    symbols.clear();
+    FreeNames.collect(parser.parse("f(x)"), interp.getEnvironment(), true, symbols);
+    assertEquals(Set.of("f", "g", "sin", "x", "k", "m", "n"), names(symbols));
+  }
+
+  @Test
+  public void impureAndUndefinedCallsAreReported() {
+    TreeInterpreter interp = new TreeInterpreter();
+    Parser parser = new Parser();
+    interp.evaluate(parser.parse("v = 1"));
+    LinkedHashSet<Integer> symbols = new LinkedHashSet<>();
+    assertFalse(FreeNames.collect(parser.parse("dump_env() + a"), interp.getEnvironment(), false, symbols));
+    assertFalse(FreeNames.collect(parser.parse("undefined(b)"), interp.getEnvironment(), false, symbols));
+    assertFalse(FreeNames.collect(parser.parse("v(c)"), interp.getEnvironment(), false, symbols));
+    assertEquals(Set.of("a", "b", "c"), names(symbols));
+  }
+}
@@ -0,0 +1,65 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+
+public class MemoizerTest {
+  private int calls = 0;
+
+  private Calculator calculator() {
+    Calculator calc = new Calculator();
+    calc.setMemoization(true);
+    calc.defineForeign("count", new ForeignFunction(1, true) {
+      @Override
+      public Double execute(TreeInterpreter state, ArrayList<Double> args) {
+        calls++;
+        return args.get(0);
+      }
+    });
+    return calc;
+  }
+
+  @Test
+  public void remembersResultsByArgument() {
+    Calculator calc = calculator();
+    calc.evaluate("f(n) = count(n) * 2");
+    assertEquals("6.00000", calc.evaluate("f(3)"));
+    assertEquals("6.00000", calc.evaluate("f(3)"));
+    assertEquals(1, calls);
+    assertEquals("8.00000", calc.evaluate("f(4)"));
+    assertEquals(2, calls);
+  }
+
+  @Test
+  public void forgetsResultsWhenAGlobalChanges() {
+    Calculator calc = calculator();
+    calc.evaluate("k = 1");
+    calc.evaluate("g(n) = count(n) + k");
+    calc.evaluate("f(n) = g(n) * 2");
+    assertEquals("4.00000", calc.evaluate("f(1)"));
+    calc.evaluate("k = 2");
+    assertEquals("6.00000", calc.evaluate("f(1)"));
+    calc.evaluate("g(n) = count(n) - k");
+    assertEquals("-2.00000", calc.evaluate("f(1)"));
+    assertEquals("-2.00000", calc.evaluate("f(1)"));
+    assertEquals(3, calls);
+  }
+
+  @Test
+  public void impureCallsAreNotRemembered() {
+    Calculator calc = calculator();
+    calc.defineForeign("tick", new ForeignFunction(1) {
+      @Override
+      public Double execute(TreeInterpreter state, ArrayList<Double> args) {
+        calls++;
+        return args.get(0);
+      }
+    });
+    calc.evaluate("f(n) = tick(n)");
+    calc.evaluate("f(1)");
+    calc.evaluate("f(1)");
+    assertEquals(2, calls);
+  }
+}
@@ -0,0 +1,98 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Locale;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class NumberRoundTripTest {
+  private static final double[] SPECIAL = {
+    0.0, -0.0, 1.0, 0.1, 0.2, 0.3, 1e23, 9007199254740993.0, 5e-324, 4.9e-324,
+    Double.MIN_NORMAL, Double.MAX_VALUE, 1.7976931348623157e308, 2.2250738585072011e-308,
+    123456.789, 1e-7, 1e21, 0.001, 999999.5, 1.5, 2.5,
+  };
+
+  private static double[] samples() {
+    Random random = new Random(42);
+    double[] values = new double[SPECIAL.length + 20000];
+    System.arraycopy(SPECIAL, 0, values, 0, SPECIAL.length);
+    for (int i = SPECIAL.length; i < values.length; i++) {
+      double value;
+      do {
+        value = Double.longBitsToDouble(random.nextLong());
+      } while (Double.isNaN(value) || Double.isInfinite(value));
+      values[i] = i % 2 == 0 ? Math.abs(value) : random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+    }
+    return values;
+  }
+
+  @Test
+  public void shortestParsesBackToTheSameDouble() {
+    DoubleFormatter formatter = new DoubleFormatter();
+    StringBuilder out = new StringBuilder();
+    for (double value : samples()) {
+      out.setLength(0);
+      String text = formatter.appendShortest(out, value).toString();
+      assertEquals(Double.doubleToRawLongBits(value), Double.doubleToRawLongBits(Double.parseDouble(text)), text);
+    }
+  }
+
+  @Test
+  public void lexerReadsShortestOutputExactly() {
+    DoubleFormatter formatter = new DoubleFormatter();
+    StringBuilder out = new StringBuilder();
+    Parser parser = new Parser();
+    for (double value : samples()) {
+      if (value < 0 || Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0.0)) {
+        continue;
+      }
+      out.setLength(0);
+      String text = formatter.appendShortest(out, value).toString();
+      Expression parsed = parser.parse(text);
+      assertTrue(parsed instanceof Expression.Literal, text);
+      assertEquals(value, ((Expression.Literal) parsed).value, text);
+    }
+  }
+
+  @Test
+  public void generalMatchesFormatter() {
+    DoubleFormatter formatter = new DoubleFormatter();
+    StringBuilder out = new StringBuilder();
+    for (double value : SPECIAL) {
+      for (double signed : new double[] { value, -value }) {
+        out.setLength(0);
+        assertEquals(String.format(Locale.ROOT, "%g", signed), formatter.appendGeneral(out, signed).toString());
+      }
+    }
+  }
+
+  @Test
+  public void generalWritesSpecialValues() {
+    DoubleFormatter formatter = new DoubleFormatter();
+    assertEquals("NaN", formatter.appendGeneral(new StringBuilder(), Double.NaN).toString());
+    assertEquals("Infinity", formatter.appendGeneral(new StringBuilder(), Double.POSITIVE_INFINITY).toString());
+    assertEquals("-Infinity", formatter.appendGeneral(new StringBuilder(), Double.NEGATIVE_INFINITY).toString());
+  }
+
+  @Test
+  public void parserAgreesWithJdkOrDefers() {
+    Random random = new Random(7);
+    for (int i = 0; i < 100000; i++) {
+      long digits = random.nextLong() >>> random.nextInt(64);
+      int exponent = random.nextInt(700) - 350;
+      double fast = DoubleParser.toDouble(digits, exponent, false);
+      if (!Double.isNaN(fast)) {
+        double exact = Double.parseDouble(Long.toUnsignedString(digits) + "e" + exponent);
+        assertEquals(exact, fast, digits + "e" + exponent);
+      }
+    }
+  }
+
+  @Test
+  public void truncatedDigitsOnlyRoundWhenUnambiguous() {
+    // 2^53 + 1 lies exactly between two doubles, so more digits decide.
+    assertTrue(Double.isNaN(DoubleParser.toDouble(90071992547409925L, -1, true)));
+    assertEquals(0.1, DoubleParser.toDouble(1000000000000000000L, -19, true));
+  }
+}
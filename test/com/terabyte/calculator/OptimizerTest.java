@@ -0,0 +1,74 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class OptimizerTest {
+  private static final double[] OPERANDS = {
+    0.0, -0.0, 1.0, -1.0, 0.1, -3.5, 1e308, -1e-320,
+    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN,
+  };
+
+  // Rewritten forms must give the same bits as the parsed ones.
+  private static final String[] EXACT = {
+    "x^0.5", "x^1", "x * 1", "1 * x", "x - 0", "x - -0", "x + 0", "x / 1", "x / 4", "x / 0.125",
+    "x / 3", "(x * 2) / 2^-3", "sqrt(x) + sin(0.5)", "(x + 1) * (x + 1) - (x + 1)",
+  };
+
+  @Test
+  public void rewritesKeepEveryBit() {
+    TreeInterpreter interp = new TreeInterpreter();
+    Parser parser = new Parser();
+    Optimizer optimizer = new Optimizer(interp);
+    DoubleInterpreter engine = new DoubleInterpreter(interp);
+    for (String input : EXACT) {
+      Expression parsed = parser.parse(input);
+      Expression optimized = optimizer.optimize(parsed);
+      for (double x : OPERANDS) {
+        interp.getEnvironment().defineDouble("x", x);
+        assertEquals(Double.doubleToLongBits(engine.evaluate(parsed)),
+            Double.doubleToLongBits(engine.evaluate(optimized)), input + " at " + x);
+      }
+    }
+  }
+
+  @Test
+  public void squareRootsOfNegativeZeroAndInfinity() {
+    Calculator calc = new Calculator();
+    calc.evaluate("w = -(10^400)");
+    calc.evaluate("z = -(0)");
+    assertEquals("Infinity", calc.evaluate("w^0.5"));
+    assertEquals("0.00000", calc.evaluate("z^0.5"));
+    calc.evaluate("half(v) = v^0.5");
+    assertEquals("Infinity", calc.evaluate("half(w)"));
+    assertEquals("0.00000", calc.evaluate("half(z)"));
+    assertEquals(Double.POSITIVE_INFINITY, calc.compile("w^0.5").evaluate());
+    assertEquals(0.0, calc.compile("z^0.5").evaluate());
+  }
+
+  // Shared subexpressions that may fail are not evaluated ahead of an
+  // earlier failure.
+  @Test
+  public void sharingKeepsTheFirstError() {
+    for (Calculator.Engine engine : Calculator.Engine.values()) {
+      Calculator calc = new Calculator();
+      calc.setEngine(engine);
+      assertEquals("Value Error! Division by zero is undefined.", calc.evaluate("1/0 + (q+1)*(q+1)"));
+      assertEquals("Value Error! Division by zero is undefined.", calc.evaluate("1/0 + sin(q)*sin(q)"));
+      assertEquals("Undefined name 'q'!", calc.evaluate("(q+1)*(q+1) + 1/0"));
+      calc.evaluate("q = 2");
+      assertEquals("Value Error! Division by zero is undefined.", calc.evaluate("1/0 + (q+1)*(q+1)"));
+      assertEquals("9.00000", calc.evaluate("(q+1)*(q+1)"));
+    }
+  }
+
+  @Test
+  public void foldsConstants() {
+    Optimizer optimizer = new Optimizer(new TreeInterpreter());
+    Expression folded = optimizer.optimize(new Parser().parse("2 * 3 + sqrt(16) - 10%"));
+    assertTrue(folded instanceof Expression.Literal);
+    assertEquals(9.9, ((Expression.Literal) folded).value);
+    assertFalse(optimizer.optimize(new Parser().parse("pi * 2")) instanceof Expression.Literal);
+  }
+}
@@ -0,0 +1,67 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import com.terabyte.calculator.TreeInterpreter.ValueError;
+
+public class ParallelEvaluatorTest {
+  private static Map<String, double[]> columns(int rows) {
+    Random random = new Random(3);
+    double[] x = new double[rows];
+    double[] y = new double[rows];
+    for (int i = 0; i < rows; i++) {
+      x[i] = random.nextDouble() * 100 - 50;
+      y[i] = random.nextDouble() + 1;
+    }
+    Map<String, double[]> columns = new HashMap<>();
+    columns.put("x", x);
+    columns.put("y", y);
+    return columns;
+  }
+
+  @Test
+  public void matchesTheSequentialEvaluator() {
+    Calculator calc = new Calculator();
+    calc.evaluate("k = 3");
+    calc.evaluate("f(a, b) = (a * k + b) / (b + 1) + sin(a)");
+    Map<String, double[]> columns = columns(300000);
+    assertArrayEquals(calc.evaluate("f(x, y)^2 - x mod y", columns),
+        calc.evaluateParallel("f(x, y)^2 - x mod y", columns));
+  }
+
+  @Test
+  public void sumsDoNotDependOnThePool() {
+    TreeInterpreter interp = new TreeInterpreter();
+    Expression expr = new Parser().parse("x * y + 1e10");
+    Map<String, double[]> columns = columns(200000);
+    double one = new ParallelEvaluator(interp, new ForkJoinPool(1)).sum(expr, columns);
+    double four = new ParallelEvaluator(interp, new ForkJoinPool(4)).sum(expr, columns);
+    assertEquals(Double.doubleToLongBits(one), Double.doubleToLongBits(four));
+    assertEquals(one / 200000, new ParallelEvaluator(interp).mean(expr, columns));
+  }
+
+  @Test
+  public void calculatorReducesInParallel() {
+    Calculator calc = new Calculator();
+    calc.evaluate("k = 2");
+    Map<String, double[]> columns = new HashMap<>();
+    columns.put("x", new double[] { 1, 2, 3, 4 });
+    assertEquals(20.0, calc.sumParallel("x * k", columns));
+    assertEquals(5.0, calc.meanParallel("x * k", columns));
+    assertThrows(ValueError.class, () -> calc.sumParallel("x / 0", columns));
+  }
+
+  @Test
+  public void errorsReachTheCaller() {
+    Calculator calc = new Calculator();
+    Map<String, double[]> columns = columns(100000);
+    columns.get("y")[99999] = 0;
+    assertThrows(ValueError.class, () -> calc.evaluateParallel("x / y", columns));
+    assertEquals(100000, calc.evaluateParallel("x / (y + 1)", columns).length);
+  }
+}
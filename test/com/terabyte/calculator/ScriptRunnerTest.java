@@ -0,0 +1,137 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ScriptRunnerTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  public void writesOneLinePerInput() throws IOException {
+    Path input = dir.resolve("input.txt");
+    Path output = dir.resolve("output.txt");
+    Files.write(input, "x = 2\r\n\nf(a) = a * x\nf(3)\nnope\n1 +\n".getBytes(StandardCharsets.UTF_8));
+    ScriptRunner.Summary summary = new ScriptRunner(new Calculator()).run(input, output);
+    assertEquals(6, summary.lines);
+    assertEquals(2, summary.errors);
+    assertEquals("\n\n\n6.00000\nUndefined name 'nope'!\nSyntax Error!\n",
+        new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+  }
+
+  // Metrics that throw on the given call, with err if it is an Error.
+  private static Metrics throwing(int call, boolean error) {
+    return new Metrics() {
+      private int calls = 0;
+
+      @Override
+      public void evaluated(long nanos) {
+        if (++calls == call) {
+          if (error) {
+            throw new Error("metrics");
+          }
+          throw new IllegalStateException("metrics");
+        }
+      }
+      @Override
+      public void failed(ErrorKind kind, long nanos) {
+      }
+    };
+  }
+
+  @Test
+  public void unexpectedErrorsGetTheirOwnLine() throws IOException {
+    Path input = dir.resolve("input.txt");
+    Path output = dir.resolve("output.txt");
+    Files.write(input, "1+1\n2+1\n2+2\n".getBytes(StandardCharsets.UTF_8));
+    Calculator calc = new Calculator();
+    calc.setMetrics(throwing(2, false));
+    ScriptRunner.Summary summary = new ScriptRunner(calc).run(input, output);
+    assertEquals(3, summary.lines);
+    assertEquals(1, summary.errors);
+    assertEquals("2.00000\nUnexpected Error! java.lang.IllegalStateException: metrics\n4.00000\n",
+        new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void failedRunKeepsThePreviousOutput() throws IOException {
+    Path input = dir.resolve("input.txt");
+    Path output = dir.resolve("output.txt");
+    Files.write(input, "1+1\n2+1\n".getBytes(StandardCharsets.UTF_8));
+    Files.write(output, "old\n".getBytes(StandardCharsets.UTF_8));
+    Calculator calc = new Calculator();
+    calc.setMetrics(throwing(2, true));
+    assertThrows(Error.class, () -> new ScriptRunner(calc).run(input, output));
+    assertEquals("old\n", new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+    try (var files = Files.list(dir)) {
+      assertEquals(2, files.count());
+    }
+  }
+
+  // The first batch fills the output buffer with error messages, so the
+  // writer blocks on the undrained pipe; the evaluator then fails on the
+  // first line of the second batch. The pipe must stay open.
+  @Test
+  public void failureLeavesTheOutputOpen() throws Exception {
+    StringBuilder script = new StringBuilder();
+    String name = new String(new char[2000]).replace('\0', 'q');
+    for (int i = 0; i < ScriptRunner.BATCH_LINES; i++) {
+      script.append(name).append('\n');
+    }
+    script.append("1\n");
+    Path input = dir.resolve("input.txt");
+    Files.write(input, script.toString().getBytes(StandardCharsets.UTF_8));
+
+    CountDownLatch failed = new CountDownLatch(1);
+    Calculator calc = new Calculator();
+    calc.setMetrics(new Metrics() {
+      @Override
+      public void evaluated(long nanos) {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException err) {
+          Thread.currentThread().interrupt();
+        }
+        failed.countDown();
+        throw new Error("metrics");
+      }
+      @Override
+      public void failed(ErrorKind kind, long nanos) {
+      }
+    });
+
+    Pipe pipe = Pipe.open();
+    ArrayList<Throwable> drainErrors = new ArrayList<>();
+    Thread drain = new Thread(() -> {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+      try {
+        failed.await();
+        Thread.sleep(200);
+        while (pipe.source().read(buffer) >= 0) {
+          buffer.clear();
+        }
+      } catch (Throwable err) {
+        drainErrors.add(err);
+      }
+    });
+    drain.start();
+
+    Error err = assertThrows(Error.class,
+        () -> new ScriptRunner(calc).run(input, pipe.sink()));
+    assertEquals("metrics", err.getMessage());
+    assertTrue(pipe.sink().isOpen());
+    pipe.sink().close();
+    drain.join();
+    assertEquals(new ArrayList<Throwable>(), drainErrors);
+  }
+}
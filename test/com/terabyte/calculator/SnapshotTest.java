@@ -0,0 +1,158 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import com.terabyte.calculator.Environment.LoadError;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  public void restoresVariablesAndFunctions() throws IOException {
+    Calculator calc = new Calculator();
+    calc.evaluate("x = 2.5");
+    calc.evaluate("tiny = 5e-324");
+    calc.evaluate("négatif = -0.1");
+    calc.evaluate("f(a, b) = (a * x + b) / (a * x + b % 3) - -b^2");
+    calc.evaluate("g(n) = f(n, n) / 100%");
+    calc.evaluate("h() = sin(pi / 2) + g(1)");
+    String expected = calc.evaluate("h() + f(3, 4) + g(x) + tiny + négatif");
+    Path path = dir.resolve("snapshot.bin");
+    calc.save(path);
+
+    Calculator loaded = new Calculator();
+    loaded.evaluate("x = 99");
+    loaded.evaluate("stale = 1");
+    loaded.load(path);
+    assertEquals(expected, loaded.evaluate("h() + f(3, 4) + g(x) + tiny + négatif"));
+    assertEquals("Undefined name 'stale'!", loaded.evaluate("stale"));
+    assertEquals(calc.getEnvironmentSize(), loaded.getEnvironmentSize());
+  }
+
+  @Test
+  public void savesWhatWasLoaded() throws IOException {
+    Calculator calc = new Calculator();
+    calc.evaluate("y = 3");
+    calc.evaluate("sq(v) = v * v");
+    Path first = dir.resolve("first.bin");
+    Path second = dir.resolve("second.bin");
+    calc.save(first);
+    Calculator loaded = new Calculator();
+    loaded.load(first);
+    loaded.save(second);
+    Snapshot a = Snapshot.read(first);
+    Snapshot b = Snapshot.read(second);
+    assertArrayEquals(a.names, b.names);
+    assertArrayEquals(a.values, b.values);
+    assertEquals(a.functions.length, b.functions.length);
+    assertEquals(new ExpressionPrinter().getString(a.functions[0]), new ExpressionPrinter().getString(b.functions[0]));
+  }
+
+  @Test
+  public void failedLoadKeepsTheState() throws IOException {
+    Calculator calc = new Calculator();
+    calc.evaluate("z = 1");
+    Path path = dir.resolve("missing.bin");
+    assertThrows(IOException.class, () -> calc.load(path));
+    assertEquals("1.00000", calc.evaluate("z"));
+  }
+
+  @Test
+  public void saveReplacesTheFileWhole() throws IOException {
+    Calculator calc = new Calculator();
+    calc.evaluate("a = 1");
+    Path path = dir.resolve("state.bin");
+    calc.save(path);
+    calc.evaluate("a = 2");
+    calc.save(path);
+    Calculator loaded = new Calculator();
+    loaded.load(path);
+    assertEquals("2.00000", loaded.evaluate("a"));
+
+    // A save that cannot be moved into place leaves nothing behind.
+    Path taken = dir.resolve("taken");
+    Files.createDirectories(taken.resolve("inside"));
+    assertThrows(IOException.class, () -> calc.save(taken));
+    try (var files = Files.list(dir)) {
+      assertEquals(2, files.count());
+    }
+    assertTrue(Files.isDirectory(taken.resolve("inside")));
+  }
+
+  // A snapshot of one function f(a) with the given body, written by hand.
+  private Path corrupt(int... body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(ByteBuffer.allocate(8).putInt(0x43414C43).putInt(1).array());
+    out.write(new byte[] { 0, 1, 0, 1, 'f', 1, 0, 1, 'a' });
+    for (int b : body) {
+      out.write(b);
+    }
+    Path path = dir.resolve("corrupt.bin");
+    Files.write(path, out.toByteArray());
+    return path;
+  }
+  private void assertCorrupt(Path path) {
+    Calculator calc = new Calculator();
+    calc.evaluate("z = 1");
+    assertThrows(LoadError.class, () -> calc.load(path));
+    assertEquals("1.00000", calc.evaluate("z"));
+  }
+
+  @Test
+  public void handWrittenSnapshotLoads() throws IOException {
+    // f(a) = -a, the parameter's name string is referenced again.
+    Calculator calc = new Calculator();
+    calc.load(corrupt(1, Token.Type.MINUS.ordinal(), 4, 2, 1));
+    assertEquals("-2.00000", calc.evaluate("f(2)"));
+    // f(a) = a * b where b = a + 1, b bound in the slot after a.
+    calc.load(corrupt(6, 2, 1, 2, Token.Type.PLUS.ordinal(), 4, 2, 1, 0, 0x3F, 0xF0, 0, 0, 0, 0, 0, 0, 0, 1, '1',
+        2, Token.Type.ASTERISK.ordinal(), 4, 2, 1, 4, 2, 2));
+    assertEquals("6.00000", calc.evaluate("f(2)"));
+  }
+
+  @Test
+  public void rejectsOperatorsOfTheWrongKind() throws IOException {
+    assertCorrupt(corrupt(1, Token.Type.PLUS.ordinal(), 4, 2, 1));
+    assertCorrupt(corrupt(2, Token.Type.MODULO.ordinal(), 4, 2, 1, 4, 2, 1));
+    assertCorrupt(corrupt(2, Token.Type.EQUAL.ordinal(), 4, 2, 1, 4, 2, 1));
+    assertCorrupt(corrupt(2, 0x7F, 4, 2, 1, 4, 2, 1));
+    assertCorrupt(corrupt(2, 0x80, 4, 2, 1, 4, 2, 1));
+  }
+
+  @Test
+  public void rejectsSlotsOutsideTheFrame() throws IOException {
+    // f has one parameter, so slot 1 does not exist.
+    assertCorrupt(corrupt(4, 2, 2));
+    // A binding must take the next slot, and is not visible in its value.
+    assertCorrupt(corrupt(6, 2, 0, 4, 2, 1, 4, 2, 1));
+    assertCorrupt(corrupt(6, 2, 1, 4, 2, 2, 4, 2, 2));
+  }
+
+  @Test
+  public void rejectsDeepNesting() throws IOException {
+    int[] body = new int[100_003];
+    for (int i = 0; i < body.length - 3; i++) {
+      body[i] = 3;
+    }
+    body[body.length - 3] = 4;
+    body[body.length - 2] = 2;
+    body[body.length - 1] = 1;
+    assertCorrupt(corrupt(body));
+  }
+
+  @Test
+  public void rejectsTruncatedAndTrailingData() throws IOException {
+    assertCorrupt(corrupt(2, Token.Type.PLUS.ordinal(), 4, 2, 1));
+    assertCorrupt(corrupt(0, 0));
+    assertCorrupt(corrupt(4, 2, 1, 0));
+    assertCorrupt(corrupt(7));
+  }
+}
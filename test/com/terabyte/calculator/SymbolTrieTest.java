@@ -0,0 +1,107 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+
+public class SymbolTrieTest {
+  @Test
+  public void emptyHasNothing() {
+    SymbolTrie trie = SymbolTrie.EMPTY;
+    assertFalse(trie.hasDouble(0));
+    assertNull(trie.getFunction(12345));
+    assertEquals(-1, trie.next(0));
+    assertSame(trie, trie.remove(new Object(), 3));
+  }
+
+  @Test
+  public void doublesAndFunctionsReplaceEachOther() {
+    Object edit = new Object();
+    Object fn = new Object();
+    SymbolTrie trie = SymbolTrie.EMPTY.putDouble(edit, 7, 1.5);
+    assertTrue(trie.hasDouble(7));
+    assertEquals(1.5, trie.getDouble(7));
+    trie = trie.putFunction(edit, 7, fn);
+    assertFalse(trie.hasDouble(7));
+    assertSame(fn, trie.getFunction(7));
+    trie = trie.putDouble(edit, 7, 2.5);
+    assertNull(trie.getFunction(7));
+    trie = trie.remove(edit, 7);
+    assertFalse(trie.hasDouble(7));
+    assertEquals(-1, trie.next(0));
+  }
+
+  @Test
+  public void growsForLargeSymbols() {
+    Object edit = new Object();
+    SymbolTrie trie = SymbolTrie.EMPTY.putDouble(edit, 1, 1.0);
+    trie = trie.putDouble(edit, 1 << 20, 2.0).putDouble(edit, Integer.MAX_VALUE, 3.0);
+    assertEquals(1.0, trie.getDouble(1));
+    assertEquals(2.0, trie.getDouble(1 << 20));
+    assertEquals(3.0, trie.getDouble(Integer.MAX_VALUE));
+    assertFalse(trie.hasDouble(2));
+    assertFalse(trie.hasDouble(-1));
+    assertEquals(1, trie.next(0));
+    assertEquals(1 << 20, trie.next(2));
+    assertEquals(Integer.MAX_VALUE, trie.next((1 << 20) + 1));
+  }
+
+  @Test
+  public void olderVersionsAreUnchangedUnderAnotherToken() {
+    Object edit = new Object();
+    SymbolTrie before = SymbolTrie.EMPTY;
+    for (int i = 0; i < 100; i++) {
+      before = before.putDouble(edit, i, i);
+    }
+    Object other = new Object();
+    SymbolTrie after = before.putDouble(other, 5, -1).remove(other, 6).putDouble(other, 1000, 1);
+    assertEquals(5.0, before.getDouble(5));
+    assertTrue(before.hasDouble(6));
+    assertFalse(before.hasDouble(1000));
+    assertEquals(-1.0, after.getDouble(5));
+    assertFalse(after.hasDouble(6));
+    assertEquals(1.0, after.getDouble(1000));
+  }
+
+  @Test
+  public void matchesAMapUnderRandomEdits() {
+    Random random = new Random(1);
+    TreeMap<Integer, Double> expected = new TreeMap<>();
+    ArrayList<SymbolTrie> versions = new ArrayList<>();
+    ArrayList<TreeMap<Integer, Double>> states = new ArrayList<>();
+    SymbolTrie trie = SymbolTrie.EMPTY;
+    Object edit = new Object();
+    for (int i = 0; i < 20000; i++) {
+      int symbol = random.nextInt(i % 3 == 0 ? 5000 : 64);
+      if (random.nextInt(4) == 0) {
+        trie = trie.remove(edit, symbol);
+        expected.remove(symbol);
+      } else {
+        double value = random.nextDouble();
+        trie = trie.putDouble(edit, symbol, value);
+        expected.put(symbol, value);
+      }
+      if (i % 1000 == 0) {
+        versions.add(trie);
+        states.add(new TreeMap<>(expected));
+        edit = new Object();
+      }
+    }
+    versions.add(trie);
+    states.add(expected);
+    for (int v = 0; v < versions.size(); v++) {
+      SymbolTrie version = versions.get(v);
+      TreeMap<Integer, Double> state = states.get(v);
+      int symbol = version.next(0);
+      for (int key : state.keySet()) {
+        assertEquals(key, symbol);
+        assertEquals(state.get(key), version.getDouble(key));
+        symbol = version.next(symbol + 1);
+      }
+      assertEquals(-1, symbol);
+    }
+  }
+}
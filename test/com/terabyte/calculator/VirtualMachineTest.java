@@ -0,0 +1,56 @@
+package com.terabyte.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class VirtualMachineTest {
+  private static Calculator calculator() {
+    Calculator calc = new Calculator();
+    calc.setEngine(Calculator.Engine.BYTECODE);
+    return calc;
+  }
+
+  @Test
+  public void assignmentsUpdateBindings() {
+    Calculator calc = calculator();
+    calc.evaluate("a = 2");
+    assertEquals("4.00000", calc.bind("b = a * a"));
+    calc.evaluate("a = 3");
+    assertEquals("9.00000", calc.evaluate("b"));
+  }
+
+  @Test
+  public void reusesProgramsUntilFunctionsChange() {
+    Calculator calc = calculator();
+    calc.evaluate("f(x) = x + 1");
+    assertEquals("2.00000", calc.evaluate("f(1)"));
+    assertEquals("2.00000", calc.evaluate("f(1)"));
+    calc.evaluate("f(x) = x + 2");
+    assertEquals("3.00000", calc.evaluate("f(1)"));
+    calc.evaluate("f = 5");
+    assertEquals("Value Error! Cannot call 'f'", calc.evaluate("f(1)"));
+  }
+
+  @Test
+  public void compilesOncePerTree() {
+    TreeInterpreter interp = new TreeInterpreter();
+    VirtualMachine vm = new VirtualMachine(interp);
+    Expression tree = new Parser().parse("(1 + 2) * 3");
+    assertEquals(9.0, vm.evaluate(tree));
+    assertSame(vm.program(tree), vm.program(tree));
+    Expression statement = new Parser().parse("y = R + 1");
+    assertTrue(Double.isNaN(vm.evaluate(statement)));
+    assertEquals(10.0, interp.getEnvironment().getDouble("y"));
+    Bytecode program = vm.program(tree);
+    interp.evaluate(new Parser().parse("g(x) = x"));
+    assertNotSame(program, vm.program(tree));
+  }
+
+  @Test
+  public void deepRecursionEndsInARecursionError() {
+    Calculator calc = calculator();
+    calc.evaluate("down(n) = down(n - 1)");
+    assertEquals("Recursion Error!", calc.evaluate("down(0)"));
+  }
+}